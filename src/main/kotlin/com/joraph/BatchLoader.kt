@@ -0,0 +1,146 @@
+package com.joraph
+
+import com.joraph.debug.DebugInfo
+import com.joraph.debug.JoraphDebug
+import com.joraph.loader.EntityLoaderContext
+import com.joraph.loader.EntityLoaderDescriptor
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Merges the loads of several [ExecutionContext]s executing together (see [JoraphContext.executeAll])
+ * into groups. Loads are queued up until the next [flush], then every load waiting for the same
+ * loader, argument and executor is made with a single call to the loader, and the entities it
+ * returns are split back up between the loads by their primary key. Groups are flushed on their
+ * own: the loads queued up by the queries that a group completes are flushed as soon as it's done,
+ * without waiting for any other group. A group's load is made with the debug info of the query
+ * that started the group and the latest deadline of the queries in it, and is cancelled once every
+ * query in it has cancelled its load.
+ */
+internal class BatchLoader(
+    private val loaderContext: EntityLoaderContext) {
+
+    private class Request(
+        val ids: Collection<Any>,
+        val future: CompletableFuture<List<Any>>,
+        val deadline: Deadline?)
+
+    private data class GroupKey(
+        val loader: EntityLoaderDescriptor<Any, Any, Any, Any>,
+        val argument: Any?,
+        val executor: Executor)
+
+    private class Group(
+        val key: GroupKey,
+        val debugInfo: DebugInfo?) {
+
+        val requests: MutableList<Request> = mutableListOf()
+    }
+
+    private val lock = Any()
+    private val groups: MutableMap<GroupKey, Group> = LinkedHashMap()
+
+    /**
+     * Queues up a load of the given ids to be made at the next [flush].
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun load(
+        entityClass: Class<*>,
+        loader: EntityLoaderDescriptor<Any, Any, Any, Any>?,
+        arguments: List<Any?>,
+        ids: Collection<Any>,
+        executor: Executor): CompletableFuture<List<Any>> {
+        val ret = CompletableFuture<List<Any>>()
+        try {
+            val descriptor = loader
+                ?: loaderContext.getLoader<Any, Any, Any, Any>(entityClass as Class<Any>)
+            val key = GroupKey(descriptor, loaderContext.getArgument(descriptor, arguments), executor)
+            synchronized(lock) {
+                groups.getOrPut(key) { Group(key, JoraphDebug.getDebugInfo()) }
+                    .requests.add(Request(ids, ret, Deadline.current()))
+            }
+        } catch (t: Throwable) {
+            ret.completeExceptionally(t)
+        }
+        return ret
+    }
+
+    /**
+     * Starts the loads of every group that has been queued up since the last flush.
+     */
+    fun flush() {
+        val ready = synchronized(lock) {
+            if (groups.isEmpty()) {
+                return
+            }
+            val ret = groups.values.toList()
+            groups.clear()
+            ret
+        }
+        ready.forEach { start(it) }
+    }
+
+    private fun start(group: Group) {
+        // queries that were aborted while their loads were queued up don't need them anymore
+        val requests = group.requests.filterNot { it.future.isDone }
+        if (requests.isEmpty()) {
+            return
+        }
+        val ids = requests.flatMapTo(LinkedHashSet()) { it.ids }
+        val deadline = requests.map { it.deadline }.reduce(Deadline.Companion::latest)
+
+        val previousDebugInfo = JoraphDebug.getDebugInfo()
+        JoraphDebug.setThreadDebugInfo(group.debugInfo)
+        val load = try {
+            Deadline.withCurrent(deadline) {
+                loaderContext.loadAsyncWithArgument(group.key.loader, group.key.argument, ids, group.key.executor, null)
+            }
+        } catch (t: Throwable) {
+            CompletableFuture<List<Any>>().also { it.completeExceptionally(t) }
+        } finally {
+            JoraphDebug.setThreadDebugInfo(previousDebugInfo)
+        }
+
+        // the load is shared, so it's only cancelled once nobody is waiting for it
+        val waiting = AtomicInteger(requests.size)
+        for (request in requests) {
+            request.future.whenComplete { _, error ->
+                if (error is CancellationException && waiting.decrementAndGet() == 0) {
+                    load.cancel(true)
+                }
+            }
+        }
+
+        load.whenComplete { entities, error ->
+            try {
+                split(requests, entities, error)
+            } finally {
+                flush()
+            }
+        }
+    }
+
+    /**
+     * Completes the given requests with the entities that they asked for. Completing them causes
+     * their [ExecutionContext]s to queue up their next loads, which are flushed right after.
+     */
+    private fun split(requests: List<Request>, entities: List<Any?>?, error: Throwable?) {
+        if (error != null) {
+            requests.forEach { it.future.completeExceptionally(error) }
+            return
+        }
+        val entitiesById = try {
+            entities.orEmpty()
+                .filterNotNull()
+                .associateBy { loaderContext.primaryKeyOf(it) }
+        } catch (t: Throwable) {
+            requests.forEach { it.future.completeExceptionally(t) }
+            return
+        }
+        for (request in requests) {
+            request.future.complete(request.ids.mapNotNull { entitiesById[it] })
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.joraph
+
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.CoroutineContext
+import kotlinx.coroutines.asContextElement
+
+/**
+ * A point in time by which a [Query] must finish executing, see [Query.withDeadline]. While a loader
+ * is loading entities for a [Query] that has a deadline it is available from [Deadline.current], so
+ * that the loader can bound its own calls by the time that remains.
+ */
+class Deadline private constructor(
+    private val expiresAtNanos: Long) {
+
+    /**
+     * Whether or not the deadline has passed.
+     */
+    val isExpired: Boolean get() = remainingNanos() <= 0
+
+    /**
+     * Returns the time remaining until the deadline in nanoseconds, negative if it has passed.
+     */
+    fun remainingNanos(): Long {
+        return expiresAtNanos - System.nanoTime()
+    }
+
+    /**
+     * Returns the time remaining until the deadline in the given unit, zero if it has passed.
+     */
+    fun remaining(unit: TimeUnit): Long {
+        return unit.convert(remainingNanos().coerceAtLeast(0), TimeUnit.NANOSECONDS)
+    }
+
+    /**
+     * A [CoroutineContext] element that makes this the [current] deadline within a coroutine.
+     */
+    internal fun asContextElement(): CoroutineContext {
+        return current.asContextElement(this)
+    }
+
+    override fun toString(): String {
+        return "Deadline(remaining=${remaining(TimeUnit.MILLISECONDS)}ms)"
+    }
+
+    companion object {
+
+        private val current = ThreadLocal<Deadline?>()
+
+        /**
+         * Returns a deadline that expires after the given timeout.
+         */
+        @JvmStatic
+        fun after(timeout: Long, unit: TimeUnit): Deadline {
+            return Deadline(System.nanoTime() + unit.toNanos(timeout))
+        }
+
+        /**
+         * Returns the deadline of the [Query] that the current loader is loading for,
+         * or null if it doesn't have one.
+         */
+        @JvmStatic
+        fun current(): Deadline? {
+            return current.get()
+        }
+
+        /**
+         * Returns the later of the given deadlines, or null if either of them is null, for a load made
+         * on behalf of several queries that has to be allowed to run for as long as any of them is.
+         */
+        internal fun latest(first: Deadline?, second: Deadline?): Deadline? {
+            if (first == null || second == null) {
+                return null
+            }
+            return if (first.expiresAtNanos - second.expiresAtNanos >= 0) first else second
+        }
+
+        /**
+         * Runs the given block with the given deadline as the [current] deadline.
+         */
+        internal fun <T> withCurrent(deadline: Deadline?, block: () -> T): T {
+            val previous = current.get()
+            current.set(deadline)
+            try {
+                return block()
+            } finally {
+                current.set(previous)
+            }
+        }
+    }
+}
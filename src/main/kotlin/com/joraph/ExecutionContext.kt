@@ -3,84 +3,332 @@ package com.joraph
 import com.joraph.debug.JoraphDebug
 import com.joraph.loader.EntityLoaderContext
 import com.joraph.loader.LoaderFunction
+import com.joraph.schema.ConditionalForeignKey
+import com.joraph.schema.EntityDescriptor
+import com.joraph.schema.ForeignKey
 import com.joraph.schema.PrimaryKeyNullPointerException
 import com.joraph.schema.Property
 import com.joraph.schema.Schema
-import com.joraph.schema.SchemaUtil.shouldLoad
 import com.joraph.schema.UnknownEntityDescriptorException
 import java.util.*
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.Future
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import kotlinx.coroutines.CoroutineScope
 
 /**
  * An execution context is created for every [Query] that is executed. It uses the [Schema] configured
  * by the [JoraphContext] that it was created for to coordinate [LoaderFunction]s and to execute the [Query]
  * that it was created for. Technically an [ExecutionContext] could be used more than once, but it is
  * unnecessary to do so because it is not thread-safe.
+ *
+ * Loads are scheduled as a dataflow rather than in lock-step passes: as soon as a load finishes the
+ * foreign keys of the entities it returned are read and loads for the types they reference are started.
+ * Keys for a type that already has a load in flight are batched up and loaded together once it finishes.
+ * The execution finishes when there are no loads left in flight. Only foreign keys that are part of a
+ * cycle in the [Schema] (see [Schema.isRecursive]) can lead to an unbounded chain of loads, so every load
+ * through one is counted as a recursion step and [maxRecursionDepth] bounds how deep they can go.
+ * If the [Query] has a [Deadline] no loads are started once it has passed and loads that are
+ * still running are cancelled. Failed loads that are optional, because the loader is or because the
+ * ids were only referenced by optional foreign keys, are reported by [ObjectGraph.errors] instead of
+ * failing the execution. When the [Query] adds root objects to an existing graph only they and the
+ * entities loaded for them are traversed, everything already in the graph is treated as resolved.
+ * With [Query.withLazyLoading] ids read through lazy foreign keys are left pending on the
+ * [ObjectGraph], which loads them when they're first looked up.
  */
 open class ExecutionContext @JvmOverloads constructor(
         val context: JoraphContext,
         val query: Query,
-        var maxPasses: Int = 50) {
+        var maxRecursionDepth: Int = 50,
+        val objectGraph: ObjectGraph = query.existingGraph ?: context.createEmptyGraph()) {
 
     val schema: Schema = context.schema
-    val objectGraph: ObjectGraph = query.existingGraph ?: ObjectGraph(context.schema)
     val loaderContext: EntityLoaderContext = context.loaderContext
+    val plan: QueryPlan = context.getQueryPlan(query)
 
+    private val lock = Any()
     private val keysToLoad: KeysToLoad = KeysToLoad()
+    private val keyDepths: MutableMap<Class<*>, Int> = mutableMapOf()
+    private val loadsInFlight: MutableSet<Class<*>> = mutableSetOf()
+    private val activeDescriptors: MutableSet<EntityDescriptor<*>> = mutableSetOf()
+    private val shouldLoadByForeignKey: MutableMap<ForeignKey<*, *>, Boolean> = mutableMapOf()
+    private val loadFutures: MutableMap<Class<*>, CompletableFuture<*>> = mutableMapOf()
+    private val requiredKeys: MutableMap<Class<*>, MutableSet<Any>> = mutableMapOf()
+    private val failedOptionalKeys: MutableMap<Class<*>, MutableMap<Any, Throwable>> = mutableMapOf()
+    private val debugInfo = JoraphDebug.getDebugInfo()
+    private val deadline: Deadline? = query.deadline
+
+    /**
+     * Whether only the root objects and the entities loaded for them are traversed, see [Query.withExistingGraph].
+     */
+    private val deltaOnly: Boolean = query.hasExistingGraph && query.rootObjects.isNotEmpty()
+
+    /**
+     * Creates an execution context bounded by the given number of passes. The meaning of [maxPasses]
+     * has changed: loads are no longer made in passes, it now bounds how deep recursive foreign keys
+     * are followed, as [maxRecursionDepth] does, and chains of other foreign keys aren't bounded.
+     */
+    @Deprecated(
+        message = "Use maxRecursionDepth, only recursive foreign keys are bounded",
+        replaceWith = ReplaceWith("ExecutionContext(context, query, maxPasses, objectGraph)"))
+    constructor(
+        context: JoraphContext,
+        query: Query,
+        objectGraph: ObjectGraph = query.existingGraph ?: context.createEmptyGraph(),
+        maxPasses: Int) : this(context, query, maxPasses, objectGraph)
+
+    /**
+     * The same as [maxRecursionDepth]. This used to bound the total number of passes of loads, it now
+     * only bounds how deep recursive foreign keys are followed.
+     */
+    @Deprecated(
+        message = "Use maxRecursionDepth, only recursive foreign keys are bounded",
+        replaceWith = ReplaceWith("maxRecursionDepth"))
+    var maxPasses: Int
+        get() = maxRecursionDepth
+        set(value) {
+            maxRecursionDepth = value
+        }
+
+    /**
+     * When set, [com.joraph.loader.SuspendLoaderFunction]s are started as child coroutines of this scope.
+     */
+    var coroutineScope: CoroutineScope? = null
+
+    /**
+     * When set, loads are merged with those of the other queries executing together with this one.
+     */
+    internal var batchLoader: BatchLoader? = null
+
+    private val lazyResolver by lazy { LazyResolver(context, plan, query.arguments.toList(), deadline) }
+
+    private var completion: CompletableFuture<ObjectGraph> = CompletableFuture()
 
     /**
      * Executes the [Query] and returns the resulting [ObjectGraph].
      */
     open fun execute(): ObjectGraph {
-        addToResults(query.rootObjects)
+        val future = start()
+        val result = try {
+            val timeoutNanos = deadline?.remainingNanos()
+                ?: TimeUnit.MILLISECONDS.toNanos(context.parallelExecutorDefaultTimeoutMillis)
+            future.get(timeoutNanos, TimeUnit.NANOSECONDS)
+        } catch (e: ExecutionException) {
+            throw e.cause as? JoraphException ?: JoraphException(e.cause)
+        } catch (e: TimeoutException) {
+            val timeout = QueryTimeoutException("Timed out waiting for the query to execute", e)
+            abort(timeout)
+            throw timeout
+        } catch (e: Throwable) {
+            abort(e)
+            throw JoraphException(e)
+        }
 
+        JoraphDebug.addObjectGraph(result)
+        return result
+    }
+
+    /**
+     * Executes the [Query] without blocking the calling thread, returning a future that completes
+     * with the resulting [ObjectGraph] once there is nothing left to load. No thread is held while
+     * waiting on [com.joraph.loader.AsyncLoaderFunction]s. Cancelling the returned future cancels any
+     * loads that are still running.
+     */
+    open fun executeAsync(): CompletableFuture<ObjectGraph> {
+        val future = try {
+            start()
+        } catch (t: Throwable) {
+            completion.completeExceptionally(t)
+            completion
+        }
+        val ret = future.thenApply {
+            debugInfo?.addObjectGraph(it)
+            it
+        }
+        ret.whenComplete { _, error ->
+            if (error is CancellationException) {
+                abort(error)
+            }
+        }
+        return ret
+    }
+
+    /**
+     * Starts executing the [Query], returning a future that completes once there
+     * is nothing left to load.
+     */
+    private fun start(): CompletableFuture<ObjectGraph> = synchronized(lock) {
+        completion = CompletableFuture()
         keysToLoad.clear()
-        val descriptors = query.entityClasses
-                .flatMap { schema.getEntityDescriptors(it) }
-                .toMutableSet()
-
-        // for each entity
-        var keepLoading = true
-        var pass = 0
-        while (keepLoading) {
-
-            pass++
-            if (pass > maxPasses) {
-                throw JoraphException("Maximum passes ($maxPasses) exceeded, do you have a circular dependency?")
+        keyDepths.clear()
+        requiredKeys.clear()
+        failedOptionalKeys.clear()
+        loadsInFlight.clear()
+        activeDescriptors.clear()
+
+        // the frontier is every entity whose foreign keys have not yet been read
+        val frontier = mutableListOf<Any>()
+        plan.rootDescriptors
+            .forEach { activate(it, frontier) }
+        addToResults(query.rootObjects, frontier)
+
+        try {
+            gatherValues(frontier, 0)
+            scheduleLoads()
+            completeIfIdle()
+        } catch (e: Throwable) {
+            abort(e)
+            throw e
+        }
+
+        if (deadline != null && !completion.isDone) {
+            val timer = JoraphScheduler.schedule(deadline.remainingNanos(), TimeUnit.NANOSECONDS) {
+                abort(QueryTimeoutException("Deadline exceeded while executing the query"))
             }
+            completion.whenComplete { _, _ -> timer.cancel(false) }
+        }
+        completion
+    }
 
-            // get all of the FKs
-            for (desc in descriptors) {
-                for (fk in desc.foreignKeys) {
-                    gatherValuesForForeignKeysTo(fk.foreignEntity)
-                }
+    /**
+     * Fails the execution with the given error and cancels any loads that are still running.
+     */
+    private fun abort(error: Throwable) = synchronized(lock) {
+        completion.completeExceptionally(error)
+        // cancelling completes the futures, which removes them from loadFutures
+        loadFutures.values.toList()
+            .forEach { it.cancel(true) }
+        loadFutures.clear()
+    }
+
+    /**
+     * Starts a load for every type that has keys waiting to be loaded and doesn't
+     * already have a load in flight.
+     */
+    private fun scheduleLoads() {
+        for (entityClass in keysToLoad.entitiesToLoad) {
+            if (completion.isDone) {
+                return
+            }
+            if (entityClass !in loadsInFlight) {
+                startLoad(entityClass)
+            }
+        }
+    }
+
+    /**
+     * Starts loading the keys waiting to be loaded for the given type. A failure to start the load fails
+     * the execution and cancels the loads that are already running, rather than being thrown to the caller.
+     */
+    private fun startLoad(entityClass: Class<*>) {
+        try {
+            tryStartLoad(entityClass)
+        } catch (e: Throwable) {
+            loadsInFlight.remove(entityClass)
+            abort(e)
+        }
+    }
+
+    private fun tryStartLoad(entityClass: Class<*>) {
+        val depth = keyDepths.remove(entityClass) ?: 0
+        if (depth > maxRecursionDepth) {
+            throw JoraphException("Maximum recursion depth ($maxRecursionDepth) exceeded loading ${entityClass.name}")
+        }
+        if (deadline?.isExpired == true) {
+            throw QueryTimeoutException("Deadline exceeded before loading ${entityClass.name}")
+        }
+
+        val ids = keysToLoad.getKeysToLoad(entityClass).toSet()
+        if (ids.isEmpty()) {
+            return
+        }
+        keysToLoad.addKeysLoaded(entityClass, ids)
+        loadsInFlight.add(entityClass)
+
+        val future = loadEntities(entityClass, ids)
+        future.whenComplete { objects, error -> onLoaded(entityClass, depth, ids, objects, error) }
+        // a load that completed right away has already been handled
+        if (!future.isDone) {
+            loadFutures[entityClass] = future
+        }
+    }
+
+    private fun onLoaded(entityClass: Class<*>, depth: Int, ids: Set<Any>, objects: List<*>?, error: Throwable?) {
+        synchronized(lock) {
+            loadsInFlight.remove(entityClass)
+            loadFutures.remove(entityClass)
+            if (completion.isDone) {
+                return
             }
+            try {
+                if (error != null) {
+                    val cause = (error as? CompletionException)?.cause ?: error
+                    if (!isOptional(entityClass, ids)) {
+                        throw cause
+                    }
+                    if (plan.getLoader(entityClass)?.optional != true) {
+                        // so that a required foreign key reaching them later fails the query
+                        val failed = failedOptionalKeys.getOrPut(entityClass) { mutableMapOf() }
+                        ids.forEach { failed[it] = cause }
+                    }
+                    objectGraph.addError(LoadError(entityClass, ids, cause))
+                }
 
-            // figure out which entities to load based on the FKs
-            val entitiesToLoad = keysToLoad.entitiesToLoad
+                val frontier = mutableListOf<Any>()
+                plan.getDescriptorsLoadedBy(entityClass)
+                    .forEach { activate(it, frontier) }
+                addToResults(objects, frontier)
 
-            // load the new entities
-            if (entitiesToLoad.size == 1) {
-                loadEntities(entitiesToLoad.first())
-            } else if (entitiesToLoad.size > 1) {
-                loadEntitiesInParallel(entitiesToLoad)
+                gatherValues(frontier, depth)
+                scheduleLoads()
+                completeIfIdle()
+
+            } catch (e: Throwable) {
+                abort(e)
             }
+        }
+    }
 
-            // add the new descriptors to the list
-            val newDescriptors = descriptors.addAll(entitiesToLoad
-                    .flatMap { schema.getEntityDescriptors(it) }
-                    .toSet())
-            keepLoading = entitiesToLoad.isNotEmpty() || newDescriptors
+    /**
+     * Returns whether or not a failure to load the given ids can be left out of the graph, either
+     * because the loader is optional or because the ids were only referenced by optional foreign keys.
+     */
+    private fun isOptional(entityClass: Class<*>, ids: Set<Any>): Boolean {
+        if (plan.getLoader(entityClass)?.optional == true) {
+            return true
         }
+        if (!plan.isOptionallyReferenced(entityClass)) {
+            return false
+        }
+        val required = requiredKeys[entityClass]
+            ?: return true
+        return ids.none { it in required }
+    }
 
+    private fun completeIfIdle() {
+        if (loadsInFlight.isEmpty()) {
+            completion.complete(objectGraph)
+        }
+    }
 
-        JoraphDebug.addObjectGraph(objectGraph)
-        return objectGraph
+    /**
+     * Starts following the foreign keys of entities described by the given [EntityDescriptor]. Entities
+     * of that type that are already in the graph are added to the frontier so that they are read once,
+     * unless only the delta from the root objects is being traversed.
+     */
+    private fun activate(descriptor: EntityDescriptor<*>, frontier: MutableList<Any>) {
+        if (!activeDescriptors.add(descriptor) || deltaOnly) {
+            return
+        }
+        objectGraph.getMap<Any>(descriptor.graphKey).values
+            .filterTo(frontier) { it.javaClass == descriptor.entityClass }
     }
 
-    private fun addToResults(objects: Iterable<*>?) {
+    private fun addToResults(objects: Iterable<*>?, frontier: MutableList<Any>) {
         if (objects == null) {
             return
         }
@@ -90,8 +338,7 @@ open class ExecutionContext @JvmOverloads constructor(
                 continue
             }
 
-            val entityDescriptor = schema.getEntityDescriptors(obj.javaClass)
-                    .firstOrNull { it.entityClass == obj.javaClass }
+            val entityDescriptor = descriptorFor(obj.javaClass)
                     ?: throw UnknownEntityDescriptorException(obj.javaClass)
 
             val pk: Property<*, *> = entityDescriptor.primaryKey
@@ -99,50 +346,84 @@ open class ExecutionContext @JvmOverloads constructor(
             val pkValue = pk.read(obj) ?: throw PrimaryKeyNullPointerException(obj.javaClass)
 
             objectGraph.addResult(entityDescriptor.graphKey, pkValue, obj)
+            if (entityDescriptor in activeDescriptors) {
+                frontier.add(obj)
+            }
         }
     }
 
-    private fun gatherValuesForForeignKeysTo(entityClass: Class<*>) {
-        context.schema.getEntityDescriptors(entityClass)
-                .flatMap { ed -> context.schema.describeForeignKeysTo(entityClass)
-                        .filter { fk -> shouldLoad(fk, query.arguments) }
-                        .flatMap { fk ->  objectGraph.getList(fk.entityClass)
-                                .filter { o -> o!!.javaClass == fk.entityClass }
-                                .mapNotNull { obj -> fk.read(obj!!) }
-                                .flatMap { id -> CollectionUtil.convertToSet(id) } // because it could be a one to many
-                                .filterNotNull()
-                                .filter { id -> !objectGraph.has(ed.entityClass, id) }}}
-                .forEach(keysToLoad.getAddKeyToLoadFunction(entityClass))
+    private fun descriptorFor(entityClass: Class<*>): EntityDescriptor<*>? {
+        return plan.getDescriptor(entityClass)
+            ?: schema.getEntityDescriptor(entityClass)
     }
 
-    private fun loadEntities(entityClass: Class<*>) {
-        val ids = keysToLoad.getKeysToLoad(entityClass)
-        if (ids.isEmpty()) {
-            return
+    private fun shouldLoad(fk: ForeignKey<*, *>): Boolean {
+        if (fk !is ConditionalForeignKey<*, *, *>) {
+            return true
         }
-        val objects = loaderContext.load(entityClass, query.arguments, ids)
-
-        addToResults(objects)
-        keysToLoad.addKeysLoaded(entityClass, ids)
+        return shouldLoadByForeignKey.getOrPut(fk) { fk.shouldLoad(query.arguments) }
     }
 
-    private fun loadEntitiesInParallel(entityClasses: Collection<Class<*>>) {
-        val futures = mutableListOf<Future<*>>()
-        for (entityClass in entityClasses) {
-            val info = JoraphDebug.getDebugInfo()
-            futures.add(context.executorService.submit {
-                JoraphDebug.setThreadDebugInfo(info)
-                loadEntities(entityClass)
-                JoraphDebug.clearThreadDebugInfo()
-            })
-            JoraphDebug.setThreadDebugInfo(info)
+    /**
+     * Reads the foreign keys of every entity in the frontier, queueing up the ids that need to be
+     * loaded. The entities in the frontier are at the given recursion depth, ids read through
+     * recursive foreign keys are one step deeper.
+     */
+    private fun gatherValues(frontier: List<Any>, depth: Int) {
+        for (obj in frontier) {
+            val descriptor = descriptorFor(obj.javaClass)
+                ?: continue
+            for (fk in plan.getForeignKeys(descriptor.entityClass)) {
+                if (!shouldLoad(fk)) {
+                    continue
+                }
+                val value = fk.read(obj)
+                    ?: continue
+                if (query.lazyLoading && fk.lazy) {
+                    for (id in CollectionUtil.convertToSet(value)) {
+                        if (id != null && !objectGraph.has(fk.foreignEntity, id)) {
+                            objectGraph.addPending(fk.foreignEntity, id, lazyResolver)
+                        }
+                    }
+                    continue
+                }
+                val keyDepth = if (plan.isRecursive(fk)) depth + 1 else depth
+                // because it could be a one to many
+                // only ids of types that are referenced optionally need to be told apart
+                val trackRequired = !fk.optional && plan.isOptionallyReferenced(fk.foreignEntity)
+                for (id in CollectionUtil.convertToSet(value)) {
+                    if (id != null && trackRequired) {
+                        requiredKeys.getOrPut(fk.foreignEntity) { mutableSetOf() }.add(id)
+                        // ids only referenced optionally so far may have already failed to load
+                        failedOptionalKeys[fk.foreignEntity]?.get(id)
+                            ?.let { throw it }
+                    }
+                    if (id != null
+                        && !objectGraph.has(fk.foreignEntity, id)
+                        && keysToLoad.addKeyToLoad(fk.foreignEntity, id)) {
+                        keyDepths.merge(fk.foreignEntity, keyDepth, ::maxOf)
+                    }
+                }
+            }
         }
-        for (future in futures) {
-            try {
-                future.get(context.parallelExecutorDefaultTimeoutMillis, TimeUnit.MILLISECONDS)
-            } catch (e: Throwable) {
-                throw JoraphException(e)
+    }
+
+    private fun loadEntities(entityClass: Class<*>, ids: Collection<Any>): CompletableFuture<out List<*>> {
+        val previousDebugInfo = JoraphDebug.getDebugInfo()
+        JoraphDebug.setThreadDebugInfo(debugInfo)
+        try {
+            return Deadline.withCurrent(deadline) {
+                val loader = plan.getLoader(entityClass)
+                val executor = context.getLoaderExecutor(entityClass)
+                val batchLoader = batchLoader
+                when {
+                    batchLoader != null -> batchLoader.load(entityClass, loader, query.arguments, ids, executor)
+                    loader != null -> loaderContext.loadAsync(loader, query.arguments, ids, executor, coroutineScope)
+                    else -> loaderContext.loadAsync(entityClass, query.arguments, ids, executor, coroutineScope)
+                }
             }
+        } finally {
+            JoraphDebug.setThreadDebugInfo(previousDebugInfo)
         }
     }
 
@@ -157,13 +438,15 @@ internal class KeysToLoad {
     private val keysToLoad: MutableMap<Class<*>, MutableSet<Any>> = mutableMapOf()
     private val keysLoaded: MutableMap<Class<*>, MutableSet<Any>> = mutableMapOf()
 
-    fun getAddKeyToLoadFunction(entityClass: Class<*>): (Any) -> Unit = { addKeyToLoad(entityClass, it) }
-
+    /**
+     * Adds a key to be loaded, returning false if it has already been loaded or is waiting to be.
+     */
     @Synchronized
-    fun addKeyToLoad(entityClass: Class<*>, id: Any) {
-        if (id !in getKeysLoaded(entityClass)) {
-            getKeysToLoad(entityClass).add(id)
+    fun addKeyToLoad(entityClass: Class<*>, id: Any): Boolean {
+        if (id in getKeysLoaded(entityClass)) {
+            return false
         }
+        return getKeysToLoad(entityClass).add(id)
     }
 
     @Synchronized
@@ -0,0 +1,103 @@
+package com.joraph
+
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * Determines what kind of threads a [JoraphContext] runs blocking loads on.
+ */
+enum class ExecutorMode {
+
+    /**
+     * Loads are run on a fixed size pool of platform threads.
+     */
+    PLATFORM_THREADS,
+
+    /**
+     * Each load is run on its own virtual thread and concurrency is capped per loader with a
+     * semaphore instead of by the size of a pool. Virtual threads are only available on JDK 21+,
+     * on earlier JVMs this falls back to [PLATFORM_THREADS].
+     */
+    VIRTUAL_THREADS
+}
+
+/**
+ * Access to virtual threads through reflection so that Joraph can still be compiled
+ * for, and run on, Java 8.
+ */
+internal object VirtualThreads {
+
+    private val newVirtualThreadPerTaskExecutor = try {
+        val method = Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor")
+        (method.invoke(null) as ExecutorService).shutdown()
+        method
+    } catch (e: Throwable) {
+        // not JDK 21+, or virtual threads are a disabled preview feature
+        null
+    }
+
+    /**
+     * Whether or not virtual threads are available on this JVM.
+     */
+    val isAvailable: Boolean get() = newVirtualThreadPerTaskExecutor != null
+
+    /**
+     * Returns a new [ExecutorService] that starts a new virtual thread for each task.
+     */
+    fun newExecutor(): ExecutorService {
+        val method = newVirtualThreadPerTaskExecutor
+            ?: throw UnsupportedOperationException("Virtual threads are not available")
+        return method.invoke(null) as ExecutorService
+    }
+}
+
+/**
+ * A task that knows whether it's been cancelled, so that an [Executor] can skip it before it starts.
+ */
+internal interface CancellableTask : Runnable {
+
+    /**
+     * Whether or not the task was cancelled, or otherwise completed, before it was run.
+     */
+    val isDone: Boolean
+}
+
+/**
+ * An [Executor] that caps the number of tasks running at once to the given number of [permits] by
+ * acquiring one from a [Semaphore] on the delegate's thread. [CancellableTask]s that are cancelled
+ * before they get a permit stop waiting for one and are never run. Only suitable for delegates
+ * whose threads are cheap to block, such as virtual threads.
+ */
+internal class SemaphoreExecutor(
+    private val delegate: Executor,
+    val permits: Int) : Executor {
+
+    private val semaphore = Semaphore(permits)
+
+    override fun execute(command: Runnable) {
+        delegate.execute task@{
+            if (command is CancellableTask) {
+                // wait for a permit only as long as the task is still wanted
+                do {
+                    if (command.isDone) {
+                        return@task
+                    }
+                } while (!semaphore.tryAcquire(CANCELLATION_CHECK_MILLIS, TimeUnit.MILLISECONDS))
+            } else {
+                semaphore.acquire()
+            }
+            try {
+                command.run()
+            } finally {
+                semaphore.release()
+            }
+        }
+    }
+
+    companion object {
+        private const val CANCELLATION_CHECK_MILLIS = 10L
+    }
+}
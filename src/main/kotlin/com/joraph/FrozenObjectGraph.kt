@@ -0,0 +1,313 @@
+package com.joraph
+
+import com.joraph.schema.Schema
+import java.util.Collections
+import java.util.stream.Stream
+
+/**
+ * An immutable, read-optimized copy of an [ObjectGraph], see [ObjectGraph.freeze]. The entities of
+ * each type are stored in dense arrays indexed by an open-addressing table of their ids, `long` and
+ * `int` ids unboxed, and the graph type keys of the [Schema]'s entity classes are resolved up front.
+ * There are no locks: once created nothing in it changes, so it can be shared between threads and
+ * cached freely. Entities referenced by lazy foreign keys that were still pending when it was frozen
+ * are not part of it, see [ObjectGraph.resolvePending].
+ */
+class FrozenObjectGraph internal constructor(graph: ObjectGraph) : Iterable<Triple<Class<*>, Any, Any>> {
+
+    val schema: Schema? = graph.schema
+
+    /**
+     * The optional loads that failed while building the graph, see [ObjectGraph.errors].
+     */
+    val errors: List<LoadError> = Collections.unmodifiableList(ArrayList(graph.errors))
+
+    private val tables: Map<Class<*>, Table>
+    private val typeKeys: Map<Class<*>, Table>
+
+    init {
+        val tables = LinkedHashMap<Class<*>, Table>()
+        for (graphTypeKey in graph.graphTypeKeys) {
+            val map = graph.getMap<Any>(graphTypeKey)
+            if (map.isNotEmpty()) {
+                tables[graphTypeKey] = Table(map)
+            }
+        }
+        val typeKeys = HashMap<Class<*>, Table>(tables)
+        if (schema != null) {
+            for ((graphTypeKey, table) in tables) {
+                for (descriptor in schema.getEntityDescriptors(graphTypeKey)) {
+                    if (descriptor.graphKey == graphTypeKey) {
+                        typeKeys[descriptor.entityClass] = table
+                    }
+                }
+            }
+        }
+        this.tables = tables
+        this.typeKeys = typeKeys
+    }
+
+    /**
+     * The graph type keys of the entities in the graph.
+     */
+    internal val graphTypeKeys: Set<Class<*>> get() = tables.keys
+
+    /**
+     * Whether or not any optional loads failed while building the graph.
+     */
+    fun hasErrors(): Boolean = errors.isNotEmpty()
+
+    /**
+     * The number of entities in the graph.
+     */
+    val size: Int = tables.values.sumBy { it.size }
+
+    fun isEmpty(): Boolean = size == 0
+
+    fun isNotEmpty(): Boolean = !isEmpty()
+
+    /**
+     * Returns the graph type key for the given entity class.
+     */
+    fun getGraphTypeKey(entityClass: Class<*>): Class<*> {
+        return schema?.getGraphTypeKey(entityClass) ?: entityClass
+    }
+
+    private fun tableFor(type: Class<*>): Table? {
+        return typeKeys[type]
+            ?: tables[getGraphTypeKey(type)]
+    }
+
+    /**
+     * Returns whether or not the graph has the object of the given type with the given id.
+     */
+    fun has(type: Class<*>, id: Any?): Boolean = id != null && tableFor(type)?.get(id) != null
+
+    /**
+     * Returns the object of the given type with the given id.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun <T : Any> get(type: Class<T>, id: Any?): T? = id?.let { tableFor(type)?.get(it) as T? }
+
+    /**
+     * Returns the object of the given type with the given `long` id, without boxing it.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun <T : Any> get(type: Class<T>, id: Long): T? = tableFor(type)?.getLong(id) as T?
+
+    /**
+     * Returns the object of the given type with the given `int` id, without boxing it.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun <T : Any> get(type: Class<T>, id: Int): T? = tableFor(type)?.getInt(id) as T?
+
+    /**
+     * Returns the object of the given type with
+     * the given id, throws an exception if it's not found.
+     */
+    fun <T : Any> getRequired(type: Class<T>, id: Any?): T {
+        return get(type, id)
+            ?: throw EntityNotFoundException("Entity of type ${type.name} with id $id not found")
+    }
+
+    /**
+     * Returns a list of all items of a given type, backed by the graph.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> getList(type: Class<T>): List<T> {
+        val table = tableFor(type)
+            ?: return emptyList()
+        return Collections.unmodifiableList(table.entities.asList()) as List<T>
+    }
+
+    /**
+     * Returns a list of all items of a given type with
+     * the given ids - sorted in the same way as the ids.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any, I : Any> getList(type: Class<T>, ids: Collection<I?>): List<T> {
+        val table = tableFor(type)
+            ?: return emptyList()
+        val ret = ArrayList<T>(ids.size)
+        for (id in ids) {
+            val value = id?.let { table.get(it) }
+                ?: continue
+            ret.add(value as T)
+        }
+        return ret
+    }
+
+    /**
+     * Returns a read-only map of all items of a given type, backed by the graph.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> getMap(type: Class<*>): Map<Any, T> {
+        return (tableFor(type) ?: return emptyMap()) as Map<Any, T>
+    }
+
+    /**
+     * Returns all of the ids for the given type.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> getIds(type: Class<*>): Set<T> = getMap<Any>(type).keys as Set<T>
+
+    /**
+     * Returns a stream of all items of a given type.
+     */
+    fun <T : Any> stream(type: Class<T>): Stream<T> = getList(type).stream()
+
+    override fun iterator(): Iterator<Triple<Class<*>, Any, Any>> = tables.entries
+        .asSequence()
+        .flatMap { (type, table) -> table.entities.indices.asSequence().map { Triple(type, table.idAt(it), table.entities[it]) } }
+        .iterator()
+
+    /**
+     * Returns a new, empty [ObjectGraph] layered over this one: it reads through to this graph
+     * and stores only what is added to or removed from it, so nothing is copied. Only frozen graphs
+     * can be forked: to layer over an [ObjectGraph] that's still mutable it has to be frozen first,
+     * and [ObjectGraph.freeze] copies every entity in it.
+     */
+    fun fork(): ObjectGraph {
+        val ret = ObjectGraph(schema, parent = this)
+        errors.forEach { ret.addError(it) }
+        return ret
+    }
+
+    /**
+     * Returns a new, mutable [ObjectGraph] with the contents of this one.
+     */
+    fun thaw(): ObjectGraph {
+        val ret = ObjectGraph(schema)
+        for ((type, id, value) in this) {
+            ret.addResult(type, id, value)
+        }
+        errors.forEach { ret.addError(it) }
+        return ret
+    }
+
+    /**
+     * The entities of one graph type: their ids and entities in dense arrays, and an open-addressing
+     * table of positions in them (plus one, zero marks an empty slot) keyed by the ids' hash codes.
+     * `long` and `int` ids are only stored unboxed, and boxed again when iterated. Their hash codes are
+     * computed the way [Long.hashCode] and [Int.hashCode] would, so that they can be looked up without
+     * boxing.
+     */
+    private class Table(map: Map<Any, Any>) : AbstractMap<Any, Any>() {
+
+        val entities: Array<Any>
+        private val ids: Array<Any>?
+        private val longIds: LongArray?
+        private val intIds: Boolean
+        private val index: IntArray
+        private val mask: Int
+
+        init {
+            val entries = map.entries.toList()
+            entities = Array(entries.size) { entries[it].value }
+            intIds = entries.isNotEmpty() && entries.all { it.key is Int }
+            if (intIds || entries.isNotEmpty() && entries.all { it.key is Long }) {
+                longIds = LongArray(entries.size) { (entries[it].key as Number).toLong() }
+                ids = null
+            } else {
+                longIds = null
+                ids = Array(entries.size) { entries[it].key }
+            }
+
+            var capacity = 2
+            while (capacity < entries.size * 2) {
+                capacity *= 2
+            }
+            index = IntArray(capacity)
+            mask = capacity - 1
+            for (position in entries.indices) {
+                var i = spread(hashAt(position)) and mask
+                while (index[i] != 0) {
+                    i = (i + 1) and mask
+                }
+                index[i] = position + 1
+            }
+        }
+
+        override val size: Int get() = entities.size
+
+        /**
+         * Returns the id at the given position, boxing it if it's stored unboxed.
+         */
+        fun idAt(position: Int): Any {
+            val longIds = longIds
+                ?: return ids!![position]
+            return if (intIds) longIds[position].toInt() else longIds[position]
+        }
+
+        private fun hashAt(position: Int): Int {
+            val longIds = longIds
+                ?: return ids!![position].hashCode()
+            return if (intIds) longIds[position].toInt() else java.lang.Long.hashCode(longIds[position])
+        }
+
+        override fun get(key: Any): Any? {
+            if (longIds != null) {
+                return when {
+                    intIds && key is Int -> getInt(key)
+                    !intIds && key is Long -> getLong(key)
+                    else -> null
+                }
+            }
+            val ids = ids!!
+            var i = spread(key.hashCode()) and mask
+            while (true) {
+                val position = index[i] - 1
+                if (position < 0) {
+                    return null
+                }
+                if (ids[position] == key) {
+                    return entities[position]
+                }
+                i = (i + 1) and mask
+            }
+        }
+
+        override fun containsKey(key: Any): Boolean = get(key) != null
+
+        fun getLong(id: Long): Any? {
+            val longIds = longIds
+            if (longIds == null || intIds) {
+                return if (longIds == null) get(id) else null
+            }
+            return find(java.lang.Long.hashCode(id), id, longIds)
+        }
+
+        fun getInt(id: Int): Any? {
+            val longIds = longIds
+            if (longIds == null || !intIds) {
+                return if (longIds == null) get(id) else null
+            }
+            return find(id, id.toLong(), longIds)
+        }
+
+        private fun find(hash: Int, id: Long, longIds: LongArray): Any? {
+            var i = spread(hash) and mask
+            while (true) {
+                val position = index[i] - 1
+                if (position < 0) {
+                    return null
+                }
+                if (longIds[position] == id) {
+                    return entities[position]
+                }
+                i = (i + 1) and mask
+            }
+        }
+
+        override val entries: Set<Map.Entry<Any, Any>> = object : AbstractSet<Map.Entry<Any, Any>>() {
+            override val size: Int get() = entities.size
+
+            override fun iterator(): Iterator<Map.Entry<Any, Any>> {
+                return entities.indices.asSequence()
+                    .map { java.util.AbstractMap.SimpleImmutableEntry(idAt(it), entities[it]) }
+                    .iterator()
+            }
+        }
+
+        private fun spread(hash: Int): Int = (hash * -0x61c88647) xor (hash ushr 16)
+    }
+}
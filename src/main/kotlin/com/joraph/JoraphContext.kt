@@ -1,37 +1,99 @@
 package com.joraph
 
 import com.joraph.loader.EntityLoaderContext
+import com.joraph.loader.EntityLoaderDescriptor
 import com.joraph.schema.Schema
 import java.util.concurrent.*
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.future.await
 
 /**
  * The main point of contact for using Joraph. The [JoraphContext] maintains a [Schema] and a
  * [EntityLoaderContext] and creates [ExecutionContext]s for executing [Query]s through it's
- * [execute] method.
+ * [execute] method. Blocking loads are run on platform threads from a pool of [parallelExecutorCount]
+ * threads, or when [executorMode] is [ExecutorMode.VIRTUAL_THREADS] and the JVM supports it, each on
+ * it's own virtual thread with at most [parallelExecutorCount] loads per loader running at once, or
+ * the loader's own [EntityLoaderDescriptor.maxConcurrency].
  */
 open class JoraphContext @JvmOverloads constructor(
     open val schema: Schema,
-    parallelExecutorCount: Int = 50) {
+    val parallelExecutorCount: Int = 50,
+    executorMode: ExecutorMode = ExecutorMode.PLATFORM_THREADS) {
 
-    val loaderContext: EntityLoaderContext = EntityLoaderContext()
+    val loaderContext: EntityLoaderContext = EntityLoaderContext(schema)
     var executorService: ExecutorService
     var parallelExecutorDefaultTimeoutMillis = TimeUnit.SECONDS.toMillis(30)
 
+    /**
+     * Whether or not the [ObjectGraph]s created by this context store entities with `long` or `int`
+     * ids without boxing them, see [ObjectGraph.primitiveIds].
+     */
+    var primitiveIds: Boolean = false
+
+    /**
+     * The [ExecutorMode] actually in use, which is [ExecutorMode.PLATFORM_THREADS] if
+     * virtual threads were requested but aren't supported by the JVM.
+     */
+    val executorMode: ExecutorMode = if (executorMode == ExecutorMode.VIRTUAL_THREADS && VirtualThreads.isAvailable) {
+        ExecutorMode.VIRTUAL_THREADS
+    } else {
+        ExecutorMode.PLATFORM_THREADS
+    }
+
+    private val queryPlans: MutableMap<QueryPlan.Key, QueryPlan> = ConcurrentHashMap()
+    private val loaderExecutors: MutableMap<Class<*>, SemaphoreExecutor> = ConcurrentHashMap()
+
     init {
-        val executorService = ThreadPoolExecutor(
-            parallelExecutorCount, parallelExecutorCount,
-            0L, TimeUnit.MILLISECONDS,
-            LinkedBlockingQueue()
-        )
-        executorService.rejectedExecutionHandler = RejectedExecutionHandler { r, _ -> r.run() }
-        this.executorService = executorService
+        if (this.executorMode == ExecutorMode.VIRTUAL_THREADS) {
+            this.executorService = VirtualThreads.newExecutor()
+        } else {
+            val executorService = ThreadPoolExecutor(
+                parallelExecutorCount, parallelExecutorCount,
+                0L, TimeUnit.MILLISECONDS,
+                LinkedBlockingQueue()
+            )
+            executorService.rejectedExecutionHandler = RejectedExecutionHandler { r, _ -> r.run() }
+            this.executorService = executorService
+        }
+    }
+
+    /**
+     * Returns the [Executor] that blocking loads of the given entity type are run on. On virtual
+     * threads each entity type gets its own cap, the [EntityLoaderDescriptor.maxConcurrency] of its
+     * loader or [parallelExecutorCount] if it doesn't have one.
+     */
+    open fun getLoaderExecutor(entityClass: Class<*>): Executor {
+        if (executorMode != ExecutorMode.VIRTUAL_THREADS) {
+            return executorService
+        }
+        val permits = loaderContext.findLoader(entityClass)?.maxConcurrency ?: parallelExecutorCount
+        val executor = loaderExecutors[entityClass]
+        if (executor != null && executor.permits == permits) {
+            return executor
+        }
+        // the loader was replaced by one with a different cap
+        return loaderExecutors.compute(entityClass) { _, existing ->
+            existing?.takeIf { it.permits == permits }
+                ?: SemaphoreExecutor(Executor { executorService.execute(it) }, permits)
+        }!!
     }
 
     /**
      * Creates a new [ObjectGraph] configured with the context's [Schema]
      */
     open fun createEmptyGraph(): ObjectGraph {
-        return ObjectGraph(schema)
+        return ObjectGraph(schema, primitiveIds)
+    }
+
+    /**
+     * Returns the [QueryPlan] for the given [Query], compiling and caching it if necessary. Plans
+     * are recompiled after the [Schema] is modified or re-validated, or a loader is added.
+     */
+    open fun getQueryPlan(query: Query): QueryPlan {
+        val key = QueryPlan.Key.of(query, schema, loaderContext)
+        queryPlans[key]?.let { return it }
+        queryPlans.keys.removeIf { it.schemaVersion != key.schemaVersion || it.loaderVersion != key.loaderVersion }
+        return queryPlans.computeIfAbsent(key) { QueryPlan(it, schema, loaderContext) }
     }
 
     /**
@@ -41,6 +103,78 @@ open class JoraphContext @JvmOverloads constructor(
         return ExecutionContext(this, query).execute()
     }
 
+    /**
+     * Executes the given [Query] without blocking the calling thread, returning a future
+     * that completes with the resulting [ObjectGraph].
+     */
+    open fun executeAsync(query: Query): CompletableFuture<ObjectGraph> {
+        return ExecutionContext(this, query).executeAsync()
+    }
+
+    /**
+     * Executes the given [Query]s together and returns their resulting [ObjectGraph]s in the same order.
+     * Rather than each [Query] calling every loader it needs, the ids that they need from a loader
+     * (with the same argument) at the same time are merged into one call, without any query waiting
+     * for the loads of the others. When a [sharedGraph] is given, queries without an existing graph of
+     * their own put their results into it. This waits for as long as the query with the latest
+     * [Query.deadline] allows, queries without one are allowed [parallelExecutorDefaultTimeoutMillis].
+     */
+    @JvmOverloads
+    open fun executeAll(queries: List<Query>, sharedGraph: ObjectGraph? = null): List<ObjectGraph> {
+        val defaultTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(parallelExecutorDefaultTimeoutMillis)
+        val timeoutNanos = queries
+            .map { it.deadline?.remainingNanos() ?: defaultTimeoutNanos }
+            .maxOrNull()
+            ?: defaultTimeoutNanos
+        val future = executeAllAsync(queries, sharedGraph)
+        return try {
+            future.get(timeoutNanos, TimeUnit.NANOSECONDS)
+        } catch (e: ExecutionException) {
+            throw e.cause as? JoraphException ?: JoraphException(e.cause)
+        } catch (e: TimeoutException) {
+            future.cancel(true)
+            throw QueryTimeoutException("Timed out waiting for the queries to execute", e)
+        } catch (e: Throwable) {
+            future.cancel(true)
+            throw JoraphException(e)
+        }
+    }
+
+    /**
+     * Executes the given [Query]s together without blocking the calling thread, see [executeAll].
+     */
+    @JvmOverloads
+    open fun executeAllAsync(queries: List<Query>, sharedGraph: ObjectGraph? = null): CompletableFuture<List<ObjectGraph>> {
+        val batchLoader = BatchLoader(loaderContext)
+        val futures = queries.map { query ->
+            val executionContext = ExecutionContext(this, query,
+                objectGraph = query.existingGraph ?: sharedGraph ?: createEmptyGraph())
+            executionContext.batchLoader = batchLoader
+            executionContext.executeAsync()
+        }
+        batchLoader.flush()
+
+        val ret = CompletableFuture.allOf(*futures.toTypedArray())
+            .thenApply { futures.map { it.join() } }
+        ret.whenComplete { _, error ->
+            if (error is CancellationException) {
+                futures.forEach { it.cancel(true) }
+            }
+        }
+        return ret
+    }
+
+    /**
+     * Executes the given [Query] from a coroutine, suspending rather than blocking until the resulting
+     * [ObjectGraph] is ready. [com.joraph.loader.SuspendLoaderFunction]s are started as child coroutines
+     * of the caller, and cancelling the caller abandons the execution.
+     */
+    open suspend fun executeSuspending(query: Query): ObjectGraph = coroutineScope {
+        val executionContext = ExecutionContext(this@JoraphContext, query)
+        executionContext.coroutineScope = this
+        executionContext.executeAsync().await()
+    }
+
     /**
      * A shortcut for executing a query for the given [entityClasses] and root [objects].
      */
@@ -0,0 +1,29 @@
+package com.joraph
+
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * A single daemon thread shared by every [JoraphContext] for running small timed tasks, such as
+ * flushing coalesced loads. Tasks run on it must be quick and must never block.
+ */
+internal object JoraphScheduler {
+
+    private val executor: ScheduledThreadPoolExecutor by lazy {
+        val ret = ScheduledThreadPoolExecutor(1) { runnable ->
+            val thread = Thread(runnable, "joraph-scheduler")
+            thread.isDaemon = true
+            thread
+        }
+        ret.removeOnCancelPolicy = true
+        ret
+    }
+
+    /**
+     * Runs the given task once after the given delay.
+     */
+    fun schedule(delay: Long, unit: TimeUnit, task: () -> Unit): ScheduledFuture<*> {
+        return executor.schedule(Runnable { task() }, delay, unit)
+    }
+}
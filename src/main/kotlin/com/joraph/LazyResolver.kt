@@ -0,0 +1,51 @@
+package com.joraph
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Loads the ids that a [Query] with lazy loading left out of its [ObjectGraph] (see
+ * [Query.withLazyLoading]), along with everything they reference. It only holds on to what it
+ * needs to load them, the query's plan, argument providers and deadline, rather than to the
+ * [ExecutionContext] that executed the query, and waits for the load for no longer than the
+ * deadline allows, or [JoraphContext.parallelExecutorDefaultTimeoutMillis] without one.
+ */
+internal class LazyResolver(
+    private val context: JoraphContext,
+    private val plan: QueryPlan,
+    private val arguments: List<Any>,
+    private val deadline: Deadline?) {
+
+    @Suppress("UNCHECKED_CAST")
+    fun resolve(graph: ObjectGraph, entityClass: Class<*>, ids: Set<Any>) {
+        val timeoutNanos = deadline?.remainingNanos()
+            ?: TimeUnit.MILLISECONDS.toNanos(context.parallelExecutorDefaultTimeoutMillis)
+        val future = Deadline.withCurrent(deadline) {
+            val loader = plan.getLoader(entityClass)
+            val executor = context.getLoaderExecutor(entityClass)
+            when {
+                loader != null -> context.loaderContext.loadAsync(loader, arguments, ids, executor)
+                else -> context.loaderContext.loadAsync(entityClass as Class<Any>, arguments, ids, executor)
+            }
+        }
+        val entities = try {
+            future.get(timeoutNanos, TimeUnit.NANOSECONDS)
+        } catch (e: ExecutionException) {
+            throw e.cause as? JoraphException ?: JoraphException(e.cause)
+        } catch (e: TimeoutException) {
+            future.cancel(true)
+            throw QueryTimeoutException("Timed out loading lazily referenced ${entityClass.name}", e)
+        } catch (e: InterruptedException) {
+            future.cancel(true)
+            Thread.currentThread().interrupt()
+            throw JoraphException(e)
+        }
+        context.execute(Query()
+            .withRootEntities(entities.filterNotNull())
+            .withArgumentProviders(arguments)
+            .withExistingGraph(graph)
+            .withDeadline(deadline)
+            .withLazyLoading())
+    }
+}
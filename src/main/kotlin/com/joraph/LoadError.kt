@@ -0,0 +1,10 @@
+package com.joraph
+
+/**
+ * Describes an optional load that failed while executing a [Query], leaving the entities
+ * with the given [ids] out of the [ObjectGraph].
+ */
+data class LoadError(
+    val entityClass: Class<*>,
+    val ids: Set<Any>,
+    val cause: Throwable)
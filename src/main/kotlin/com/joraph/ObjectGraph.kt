@@ -1,8 +1,13 @@
 package com.joraph
 
+import com.joraph.schema.ForeignKey
 import com.joraph.schema.Property
 import com.joraph.schema.Schema
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.stream.Stream
 
 /**
@@ -20,42 +25,288 @@ import java.util.stream.Stream
  * ```
  * This class is thread-safe and can be used on it's own, and with our without a [Schema],
  * although some methods require a schema to be present.
+ *
+ * Entities whose ids are `long`s or `int`s can be stored without boxing their ids, see
+ * [withPrimitiveIds]. When [primitiveIds] is set this is done for every type whose first
+ * id is a [Long] or an [Int].
+ *
+ * A graph can be layered over an immutable [parent] (see [FrozenObjectGraph.fork]): it reads through
+ * to the parent and stores only its own additions and removals in [results], so creating it is O(1)
+ * and the parent is never copied or changed.
+ *
+ * The entities referencing a given entity by a foreign key can be looked up with [getReferencing],
+ * which indexes the foreign key the first time it's used.
  */
-open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
+open class ObjectGraph @JvmOverloads constructor(
+        val schema: Schema? = null,
+        val primitiveIds: Boolean = false,
+        val parent: FrozenObjectGraph? = null) :
         Cloneable,
         Iterable<Triple<Class<*>, Any, Any>> {
 
     /**
-     *
+     * The entities added to this graph, by graph type key and id. For a layered graph this doesn't
+     * include those of its [parent].
      */
     val results: MutableMap<Class<*>, MutableMap<Any, Any>> = ConcurrentHashMap()
 
+    private val removedIds: MutableMap<Class<*>, MutableSet<Any>> = ConcurrentHashMap()
+
+    /**
+     * The ids of the [parent]'s entities that this graph has replaced or removed, by graph type key,
+     * so that the size of a [LayeredMap] is known without scanning. Ids are never taken out of it, an
+     * inherited id that's been replaced or removed stays that way.
+     */
+    private val shadowedIds: MutableMap<Class<*>, MutableSet<Any>> = ConcurrentHashMap()
+
+    /**
+     * Incremented whenever a per-type map in [results] is replaced or removed, so that
+     * [ObjectGraphView]s know to look theirs up again.
+     */
+    internal val mapsVersion = AtomicInteger()
+
+    private val loadErrors: MutableList<LoadError> = CopyOnWriteArrayList()
+
+    private val primitiveIdTypes: MutableMap<Class<*>, Boolean> = ConcurrentHashMap()
+
+    /**
+     * The ids referenced by lazy foreign keys that have yet to be loaded, by entity class, each with
+     * the resolver of the query that left it out.
+     */
+    private val pendingIds: MutableMap<Class<*>, MutableMap<Any, LazyResolver>> = ConcurrentHashMap()
+    private val resolveLock = Any()
+
+    // guarded by resolveLock
+    private var resolution: Resolution? = null
+
+    private val referenceIndexes: MutableMap<ForeignKey<*, *>, ReferenceIndex> = ConcurrentHashMap()
+    private val indexLock = Any()
+
+    /**
+     * The optional loads that failed while building this graph, the entities
+     * that they would have loaded are missing from it.
+     */
+    val errors: List<LoadError> get() = loadErrors
+
+    /**
+     * Whether or not any optional loads failed while building this graph.
+     */
+    fun hasErrors(): Boolean = loadErrors.isNotEmpty()
+
+    /**
+     * Reports an optional load that failed.
+     */
+    fun addError(error: LoadError) {
+        loadErrors.add(error)
+    }
+
+    /**
+     * Stores the entities of the given type, whose ids are [Long]s or [Int]s depending on the given
+     * id class, in a map keyed by primitive ids. This must be called before any are added.
+     */
+    fun withPrimitiveIds(type: Class<*>, idClass: Class<*>): ObjectGraph {
+        val intIds = when (idClass) {
+            java.lang.Long::class.java, java.lang.Long.TYPE -> false
+            java.lang.Integer::class.java, java.lang.Integer.TYPE -> true
+            else -> throw IllegalArgumentException("Primitive ids must be longs or ints, not ${idClass.name}")
+        }
+        val graphTypeKey = getGraphTypeKey(type)
+        primitiveIdTypes[graphTypeKey] = intIds
+        results.compute(graphTypeKey) { _, map ->
+            if (map == null || map is PrimitiveIdMap && map.intIds == intIds) {
+                map
+            } else {
+                PrimitiveIdMap(intIds).also { it.putAll(map) }
+            }
+        }
+        mapsVersion.incrementAndGet()
+        return this
+    }
+
+    /**
+     * Creates the map to store the entities of the given graph type in, the first of which has the given id.
+     */
+    private fun createResultMap(graphTypeKey: Class<*>, id: Any): MutableMap<Any, Any> {
+        val intIds = primitiveIdTypes[graphTypeKey]
+        return when {
+            intIds != null -> PrimitiveIdMap(intIds)
+            primitiveIds && id is Long -> PrimitiveIdMap(false)
+            primitiveIds && id is Int -> PrimitiveIdMap(true)
+            else -> ConcurrentHashMap()
+        }
+    }
+
+    /**
+     * Returns a typed handle for looking up entities of the given type, which resolves the graph type
+     * key and the map of its entities once instead of on every lookup.
+     */
+    fun <T : Any> view(type: Class<T>): ObjectGraphView<T> = ObjectGraphView(this, type)
+
+    /**
+     * Whether or not lookups that miss the per-type maps in [results] need to check
+     * the [parent] or resolve pending ids.
+     */
+    internal val readsThrough: Boolean get() = parent != null || pendingIds.isNotEmpty()
+
+    /**
+     * Whether or not any entities referenced by lazy foreign keys have yet to be loaded,
+     * see [Query.withLazyLoading].
+     */
+    fun hasPending(): Boolean = pendingIds.values.any { it.isNotEmpty() }
+
+    /**
+     * Returns the ids of the entities of the given type that were referenced by lazy foreign
+     * keys and have yet to be loaded.
+     */
+    fun getPendingIds(type: Class<*>): Set<Any> {
+        val graphTypeKey = getGraphTypeKey(type)
+        return pendingIds.entries
+            .filter { getGraphTypeKey(it.key) == graphTypeKey }
+            .flatMapTo(mutableSetOf()) { it.value.keys }
+    }
+
+    /**
+     * Loads every pending id of the given type, see [Query.withLazyLoading]. The ids are taken
+     * off the pending ones and loaded without holding a lock, lookups on other threads wait for
+     * them to be loaded. Ids that fail to load are left pending to be tried again.
+     */
+    fun resolvePending(type: Class<*>) {
+        val graphTypeKey = getGraphTypeKey(type)
+        while (true) {
+            var running: Resolution? = null
+            var started: Resolution? = null
+            val claimed = HashMap<LazyResolver, MutableMap<Class<*>, MutableSet<Any>>>()
+            synchronized(resolveLock) {
+                val current = resolution
+                // one started by this thread is resolving the ids that reference these, so isn't waited on
+                if (current != null && current.thread !== Thread.currentThread()) {
+                    running = current
+                    return@synchronized
+                }
+                for ((entityClass, ids) in pendingIds) {
+                    if (getGraphTypeKey(entityClass) != graphTypeKey) {
+                        continue
+                    }
+                    for ((id, resolver) in ids) {
+                        if (ids.remove(id, resolver)) {
+                            claimed.getOrPut(resolver) { HashMap() }.getOrPut(entityClass) { HashSet() }.add(id)
+                        }
+                    }
+                }
+                if (claimed.isEmpty()) {
+                    return
+                }
+                if (resolution == null) {
+                    started = Resolution().also { resolution = it }
+                }
+            }
+            val other = running
+            if (other != null) {
+                // its ids may be the ones being looked up, and are in the graph once it's done
+                other.done.join()
+                continue
+            }
+
+            try {
+                for ((resolver, idsByClass) in claimed) {
+                    for ((entityClass, ids) in idsByClass) {
+                        // some may have been loaded since through foreign keys that aren't lazy
+                        val idsToLoad = ids.filterNotTo(mutableSetOf()) { has(entityClass, it) }
+                        if (idsToLoad.isNotEmpty()) {
+                            resolver.resolve(this, entityClass, idsToLoad)
+                        }
+                    }
+                }
+            } catch (t: Throwable) {
+                for ((resolver, idsByClass) in claimed) {
+                    for ((entityClass, ids) in idsByClass) {
+                        ids.filterNot { has(entityClass, it) }.forEach { addPending(entityClass, it, resolver) }
+                    }
+                }
+                throw t
+            } finally {
+                started?.let {
+                    synchronized(resolveLock) { resolution = null }
+                    it.done.complete(Unit)
+                }
+            }
+            return
+        }
+    }
+
+    /**
+     * Records an id referenced by a lazy foreign key to be loaded by the given resolver once
+     * it's looked up.
+     */
+    internal fun addPending(entityClass: Class<*>, id: Any, resolver: LazyResolver) {
+        pendingIds.computeIfAbsent(entityClass) { ConcurrentHashMap() }.putIfAbsent(id, resolver)
+    }
+
+    /**
+     * Returns whether or not the given id of the given type is pending, resolving every pending id of
+     * that type if it is.
+     */
+    private fun resolvePending(type: Class<*>, id: Any): Boolean {
+        if (pendingIds.isEmpty()) {
+            return false
+        }
+        val graphTypeKey = getGraphTypeKey(type)
+        val pending = pendingIds.entries
+            .any { it.value.containsKey(id) && getGraphTypeKey(it.key) == graphTypeKey }
+        if (pending) {
+            resolvePending(type)
+        }
+        return pending
+    }
+
+    /**
+     * Returns an immutable, read-optimized copy of this graph for when it's done being built,
+     * see [FrozenObjectGraph].
+     */
+    fun freeze(): FrozenObjectGraph = FrozenObjectGraph(this)
+
     /**
      *
      */
     @Throws(CloneNotSupportedException::class)
     override fun clone(): ObjectGraph {
-        val ret = ObjectGraph(schema)
-        this.copyGraphTo(ret)
+        val ret = ObjectGraph(schema, primitiveIds, parent)
+        ret.primitiveIdTypes.putAll(primitiveIdTypes)
+        ret.loadErrors.addAll(loadErrors)
+        for ((type, ids) in removedIds) {
+            ret.removedIds[type] = ConcurrentHashMap.newKeySet<Any>().also { it.addAll(ids) }
+        }
+        for ((type, ids) in shadowedIds) {
+            ret.shadowedIds[type] = ConcurrentHashMap.newKeySet<Any>().also { it.addAll(ids) }
+        }
+        for ((type, map) in results) {
+            for ((id, value) in map) {
+                ret.addResult(type, id, value)
+            }
+        }
         return ret
     }
 
     /**
      *
      */
-    override fun iterator(): Iterator<Triple<Class<*>, Any, Any>> = results.entries
-            .flatMap { e -> e.value.entries
-                .map { ee -> Triple(e.key, ee.key, ee.value) }}
+    override fun iterator(): Iterator<Triple<Class<*>, Any, Any>> = graphTypeKeys
+            .flatMap { type -> getMap<Any>(type).entries
+                .map { ee -> Triple(type, ee.key, ee.value) }}
             .iterator()
 
     /**
      *
      */
-    val size: Int get() = results.entries
-        .map { it.value.size }
-        .filter { it > 0 }
+    val size: Int get() = graphTypeKeys
+        .map { getMap<Any>(it).size }
         .fold(0) { l, r -> l+r }
 
+    /**
+     * The graph type keys of this graph and of its [parent].
+     */
+    internal val graphTypeKeys: Set<Class<*>> get() = if (parent == null) results.keys else results.keys + parent.graphTypeKeys
+
     /**
      *
      */
@@ -65,8 +316,8 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
      *
      */
     fun isEmpty(): Boolean {
-        for ((_, v) in results) {
-            if (v.isNotEmpty()) {
+        for (type in graphTypeKeys) {
+            if (getMap<Any>(type).isNotEmpty()) {
                 return false
             }
         }
@@ -81,12 +332,16 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
     }
 
     /**
-     * Copy this [ObjectGraph]'s results to the given [ObjectGraph].
+     * Copy this [ObjectGraph]'s results, and the errors of any loads that failed
+     * while building it, to the given [ObjectGraph].
      */
     fun copyGraphTo(destinationObjectGraph: ObjectGraph) {
         for ((type, id, value) in this) {
             destinationObjectGraph.addResult(type, id, value)
         }
+        loadErrors
+            .filterNot { destinationObjectGraph.loadErrors.contains(it) }
+            .forEach { destinationObjectGraph.addError(it) }
     }
 
     /**
@@ -100,7 +355,7 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
     @Suppress("UNCHECKED_CAST")
     fun <T : Any> getIds(type: Class<*>): Set<T> {
         return (schema!!.getEntityDescriptors(type).map { it.graphKey } + setOf(type))
-            .mapNotNull { results[it]?.keys }
+            .map { getMap<Any>(it).keys }
             .flatten()
             .map { it as T }
             .toSet()
@@ -148,7 +403,33 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
      */
     fun addResult(type: Class<*>, id: Any, value: Any) {
         val graphTypeKey = getGraphTypeKey(type)
-        results.computeIfAbsent(graphTypeKey) { ConcurrentHashMap() }[id] = value
+        val map = results[graphTypeKey]
+            ?: results.computeIfAbsent(graphTypeKey) { createResultMap(it, id) }
+        if (referenceIndexes.isEmpty()) {
+            map[id] = value
+            if (referenceIndexes.isNotEmpty()) {
+                // an index registered meanwhile may have been built without this value
+                synchronized(indexLock) {
+                    getOwnOrInherited(graphTypeKey, id)?.let { updateReferenceIndexes(graphTypeKey, id, null, it) }
+                }
+            }
+        } else {
+            synchronized(indexLock) {
+                val replaced = getOwnOrInherited(graphTypeKey, id)
+                map[id] = value
+                updateReferenceIndexes(graphTypeKey, id, replaced, value)
+            }
+        }
+        if (parent != null && parent.has(graphTypeKey, id)) {
+            shadow(graphTypeKey).add(id)
+        }
+        if (removedIds.isNotEmpty()) {
+            removedIds[graphTypeKey]?.remove(id)
+        }
+    }
+
+    private fun shadow(graphTypeKey: Class<*>): MutableSet<Any> {
+        return shadowedIds.computeIfAbsent(graphTypeKey) { ConcurrentHashMap.newKeySet() }
     }
 
     /**
@@ -160,28 +441,184 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
             return false
         }
         val graphTypeKey = getGraphTypeKey(type)
-        val map = results[graphTypeKey]
-                ?: return false
-        return map.containsKey(id)
+        if (results[graphTypeKey]?.containsKey(id) == true) {
+            return true
+        }
+        return isInherited(graphTypeKey, id)
+    }
+
+    /**
+     * Returns whether or not the given id of the given graph type is in the [parent]
+     * and hasn't been removed from this graph.
+     */
+    private fun isInherited(graphTypeKey: Class<*>, id: Any): Boolean {
+        return parent != null
+            && parent.has(graphTypeKey, id)
+            && removedIds[graphTypeKey]?.contains(id) != true
     }
 
     /**
      * Removes all objects of the given type returning the number
      * of objects that were removed.
      */
-    fun removeAll(type: Class<*>): Int = results.remove(type)?.size ?: 0
+    fun removeAll(type: Class<*>): Int {
+        val graphTypeKey = getGraphTypeKey(type)
+        val inherited = parent?.getMap<Any>(graphTypeKey)?.keys
+            ?.filter { removedIds[graphTypeKey]?.contains(it) != true }
+            ?: emptyList()
+        if (inherited.isNotEmpty()) {
+            shadow(graphTypeKey).addAll(inherited)
+            removedIds.computeIfAbsent(graphTypeKey) { ConcurrentHashMap.newKeySet() }.addAll(inherited)
+        }
+        val own = results.remove(graphTypeKey)
+        mapsVersion.incrementAndGet()
+        referenceIndexes.values.removeIf { it.graphTypeKey == graphTypeKey }
+        return (own?.size ?: 0) + inherited.count { own?.containsKey(it) != true }
+    }
 
     /**
      * Removes the given object returning true if it was found and removed.
      */
-    fun remove(type: Class<*>, id: Any?): Boolean = id?.let { results[type]?.remove(it) } != null
+    fun remove(type: Class<*>, id: Any?): Boolean {
+        if (id == null) {
+            return false
+        }
+        val graphTypeKey = getGraphTypeKey(type)
+        if (referenceIndexes.isEmpty()) {
+            return removeOwnOrInherited(graphTypeKey, id)
+        }
+        return synchronized(indexLock) {
+            val replaced = getOwnOrInherited(graphTypeKey, id)
+            val removed = removeOwnOrInherited(graphTypeKey, id)
+            if (removed && replaced != null) {
+                updateReferenceIndexes(graphTypeKey, id, replaced, null)
+            }
+            removed
+        }
+    }
+
+    private fun removeOwnOrInherited(graphTypeKey: Class<*>, id: Any): Boolean {
+        var removed = results[graphTypeKey]?.remove(id) != null
+        if (isInherited(graphTypeKey, id)) {
+            shadow(graphTypeKey).add(id)
+            removedIds.computeIfAbsent(graphTypeKey) { ConcurrentHashMap.newKeySet() }.add(id)
+            removed = true
+        }
+        return removed
+    }
+
+    /**
+     * Returns the entities of the given type that reference the entity with the given id by the
+     * given foreign key. The first call for a foreign key indexes every entity in the graph that it
+     * belongs to, after that the index is kept up to date as entities are added and removed, so a
+     * lookup doesn't scan the graph. Changes made directly to the maps in [results] aren't indexed.
+     * Entities are added to and removed from the indexes under a lock, and each one found is
+     * checked against the foreign key again, so an entity that no longer references the target isn't
+     * returned.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> getReferencing(fromType: Class<T>, fk: ForeignKey<*, *>, targetId: Any): List<T> {
+        val graphTypeKey = getGraphTypeKey(fromType)
+        require(getGraphTypeKey(fk.entityClass) == graphTypeKey) {
+            "Foreign key $fk doesn't belong to ${fromType.name}"
+        }
+        val index = referenceIndex(fk)
+        val ids = index.getReferencingIds(targetId)
+        if (ids.isEmpty()) {
+            return emptyList()
+        }
+        val ret = ArrayList<T>(ids.size)
+        for (id in ids) {
+            val value = getOwnOrInherited(graphTypeKey, id)
+            if (fromType.isInstance(value) && index.references(value!!, targetId)) {
+                ret.add(value as T)
+            }
+        }
+        return ret
+    }
+
+    private fun referenceIndex(fk: ForeignKey<*, *>): ReferenceIndex {
+        return referenceIndexes[fk]
+            ?: synchronized(indexLock) {
+                referenceIndexes[fk]
+                    ?: ReferenceIndex(fk).also {
+                        // registered before it's built so that entities added meanwhile are indexed too
+                        referenceIndexes[fk] = it
+                        it.build()
+                    }
+            }
+    }
+
+    /**
+     * Moves the references of the entity with the given id from the value it replaced to its new value,
+     * either of which may be null, in every index of a foreign key of its graph type.
+     */
+    private fun updateReferenceIndexes(graphTypeKey: Class<*>, id: Any, replaced: Any?, value: Any?) {
+        for (index in referenceIndexes.values) {
+            if (index.graphTypeKey != graphTypeKey) {
+                continue
+            }
+            if (replaced != null) {
+                index.remove(id, replaced)
+            }
+            if (value != null) {
+                index.add(id, value)
+            }
+        }
+    }
 
     /**
      * Returns the object of the given type with
      * the given id.
      */
     @Suppress("UNCHECKED_CAST")
-    operator fun <T : Any> get(type: Class<T>, id: Any?): T? = id?.let { getMap<T>(type)[it] }
+    operator fun <T : Any> get(type: Class<T>, id: Any?): T? {
+        if (id == null) {
+            return null
+        }
+        val graphTypeKey = getGraphTypeKey(type)
+        return getOwnOrInherited(graphTypeKey, id) as T?
+            ?: if (resolvePending(type, id)) getOwnOrInherited(graphTypeKey, id) as T? else null
+    }
+
+    private fun getOwnOrInherited(graphTypeKey: Class<*>, id: Any): Any? {
+        return results[graphTypeKey]?.get(id)
+            ?: if (parent == null || removedIds[graphTypeKey]?.contains(id) == true) null else parent[graphTypeKey, id]
+    }
+
+    /**
+     * Returns the object of the given type with the given id, without boxing
+     * the id if the type's entities are stored by primitive ids.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun <T : Any> get(type: Class<T>, id: Long): T? {
+        val map = results[getGraphTypeKey(type)]
+        if (map is PrimitiveIdMap && !map.intIds && parent == null) {
+            return map.getLong(id) as T?
+                ?: if (pendingIds.isEmpty()) null else get(type, id as Any?)
+        }
+        if (map == null && parent != null && removedIds.isEmpty() && pendingIds.isEmpty()) {
+            return parent[type, id]
+        }
+        return get(type, id as Any?)
+    }
+
+    /**
+     * Returns the object of the given type with the given id, without boxing
+     * the id if the type's entities are stored by primitive ids.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun <T : Any> get(type: Class<T>, id: Int): T? {
+        val map = results[getGraphTypeKey(type)]
+        if (map is PrimitiveIdMap && map.intIds && parent == null) {
+            return map.getLong(id.toLong()) as T?
+                ?: if (pendingIds.isEmpty()) null else get(type, id as Any?)
+        }
+        if (map == null && parent != null && removedIds.isEmpty() && pendingIds.isEmpty()) {
+            return parent[type, id]
+        }
+        return get(type, id as Any?)
+    }
 
     /**
      * Returns the object of the given type with
@@ -207,35 +644,46 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
     operator fun <T : Any> set(type: Class<T>, id: Any, value: T) = addResult(type, id, value)
 
     /**
-     * Returns an immutable map of all items of a given type.
+     * Returns a read-only live view of all items of a given type: it reflects later changes to
+     * the graph and nothing is copied. Use [getMapSnapshot] for a copy that doesn't change.
      */
     @Suppress("UNCHECKED_CAST")
     fun <T : Any> getMap(type: Class<*>): Map<Any, T> {
         val graphTypeKey = getGraphTypeKey(type)
-        return results.computeIfAbsent(graphTypeKey) { ConcurrentHashMap() }
-                .toMap() as Map<Any, T>
+        if (parent != null && parent.getMap<Any>(graphTypeKey).isNotEmpty()) {
+            return LayeredMap(graphTypeKey) as Map<Any, T>
+        }
+        val map = results[graphTypeKey]
+            ?: return emptyMap()
+        return Collections.unmodifiableMap(map) as Map<Any, T>
+    }
+
+    /**
+     * Returns a copy of the map of all items of a given type as they are now.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> getMapSnapshot(type: Class<*>): Map<Any, T> {
+        return LinkedHashMap(getMap<T>(type))
     }
 
     /**
      * Returns a list of all items of a given type.
      */
+    @Suppress("UNCHECKED_CAST")
     fun <T : Any> getList(type: Class<T>): List<T> {
-        return getMap<T>(type)
-                .map { it.value }
-                .toList()
+        return ArrayList(getMap<T>(type).values)
     }
 
     /**
-     * Returns a list of all items of a given type.
+     * Returns a stream of all items of a given type, backed by the graph.
      */
     @Suppress("UNCHECKED_CAST")
     fun <T : Any> stream(type: Class<T>): Stream<T> {
         return getMap<T>(type).values.stream()
-                .map { it as T }
     }
 
     /**
-     * Returns a list of all items of a given type.
+     * Returns a stream of the ids of all items of a given type, backed by the graph.
      */
     fun <T : Any> streamIds(type: Class<T>): Stream<Any> {
         return getMap<Any>(type).keys.stream()
@@ -245,12 +693,22 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
      * Returns a list of all items of a given type with
      * the given ids - sorted in the same way as the ids.
      */
+    @Suppress("UNCHECKED_CAST")
     fun <T : Any, I : Any> getList(type: Class<T>, ids: Collection<I?>): List<T> {
+        if (pendingIds.isNotEmpty()) {
+            val pending = getPendingIds(type)
+            if (ids.any { it != null && pending.contains(it) }) {
+                resolvePending(type)
+            }
+        }
         val map = getMap<T>(type)
-        return ids
-                .filterNotNull()
-                .mapNotNull { map[it] }
-                .toList()
+        val ret = ArrayList<T>(ids.size)
+        for (id in ids) {
+            val value = id?.let { map[it] }
+                ?: continue
+            ret.add(value as T)
+        }
+        return ret
     }
 
     override fun equals(other: Any?): Boolean {
@@ -260,16 +718,111 @@ open class ObjectGraph @JvmOverloads constructor(val schema: Schema? = null) :
         other as ObjectGraph
 
         if (schema != other.schema) return false
-        if (results != other.results) return false
+        if (parent == null && other.parent == null) {
+            if (results != other.results) return false
+        } else {
+            val types = (graphTypeKeys + other.graphTypeKeys)
+            if (types.any { getMap<Any>(it) != other.getMap<Any>(it) }) return false
+        }
 
         return true
     }
 
     override fun hashCode(): Int {
         var result = schema?.hashCode() ?: 0
-        result = 31 * result + results.hashCode()
+        result = 31 * result + graphTypeKeys
+            .map { getMap<Any>(it) }
+            .filter { it.isNotEmpty() }
+            .sumBy { it.hashCode() }
         return result
     }
 
+    /**
+     * The resolution of pending ids in progress on a thread, see [resolvePending].
+     */
+    private class Resolution {
+        val thread: Thread = Thread.currentThread()
+        val done = CompletableFuture<Unit>()
+    }
+
+    /**
+     * The ids of the entities that reference each id by a foreign key, see [getReferencing].
+     */
+    private inner class ReferenceIndex(private val fk: ForeignKey<*, *>) {
+
+        val graphTypeKey: Class<*> = getGraphTypeKey(fk.entityClass)
+
+        private val referencingIds: MutableMap<Any, MutableSet<Any>> = ConcurrentHashMap()
+
+        fun build() {
+            for ((id, value) in getMap<Any>(graphTypeKey)) {
+                add(id, value)
+            }
+        }
+
+        fun getReferencingIds(targetId: Any): Set<Any> = referencingIds[targetId] ?: emptySet()
+
+        fun references(value: Any, targetId: Any): Boolean = read(value).contains(targetId)
+
+        fun add(id: Any, value: Any) {
+            for (targetId in read(value)) {
+                referencingIds.computeIfAbsent(targetId) { ConcurrentHashMap.newKeySet() }.add(id)
+            }
+        }
+
+        fun remove(id: Any, value: Any) {
+            for (targetId in read(value)) {
+                referencingIds.computeIfPresent(targetId) { _, ids ->
+                    ids.remove(id)
+                    if (ids.isEmpty()) null else ids
+                }
+            }
+        }
+
+        private fun read(value: Any): Set<Any> {
+            if (!fk.entityClass.isInstance(value)) {
+                return emptySet()
+            }
+            val fkValue = fk.read(value)
+                ?: return emptySet()
+            // because it could be a one to many
+            return CollectionUtil.convertToSet(fkValue).filterNotNullTo(HashSet())
+        }
+    }
+
+    /**
+     * A read-only live view of the entities of a graph type in a layered graph: those added to it
+     * followed by those of the [parent] that it hasn't replaced or removed.
+     */
+    private inner class LayeredMap(private val graphTypeKey: Class<*>) : AbstractMap<Any, Any>() {
+
+        private val inherited: Map<Any, Any> = parent!!.getMap(graphTypeKey)
+
+        private fun isShadowed(id: Any): Boolean {
+            return results[graphTypeKey]?.containsKey(id) == true
+                || removedIds[graphTypeKey]?.contains(id) == true
+        }
+
+        override fun get(key: Any): Any? = getOwnOrInherited(graphTypeKey, key)
+
+        override fun containsKey(key: Any): Boolean = get(key) != null
+
+        override val size: Int get() {
+            val own = results[graphTypeKey]?.size ?: 0
+            val shadowed = shadowedIds[graphTypeKey]?.size ?: 0
+            return own + inherited.size - shadowed
+        }
+
+        override val entries: Set<Map.Entry<Any, Any>> get() = object : AbstractSet<Map.Entry<Any, Any>>() {
+
+            override val size: Int get() = this@LayeredMap.size
+
+            override fun iterator(): Iterator<Map.Entry<Any, Any>> {
+                val own = results[graphTypeKey]?.entries?.asSequence() ?: emptySequence()
+                return (own + inherited.entries.asSequence().filterNot { isShadowed(it.key) }).iterator()
+            }
+        }
+    }
+
 
 }
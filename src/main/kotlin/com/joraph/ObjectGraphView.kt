@@ -0,0 +1,111 @@
+package com.joraph
+
+/**
+ * A typed handle on the entities of one type in an [ObjectGraph], see [ObjectGraph.view]. The graph
+ * type key and the map of the type's entities are resolved once, so a lookup is a single probe of
+ * that map, without boxing `long` and `int` ids when the type is stored by primitive ids (see
+ * [ObjectGraph.withPrimitiveIds]). Lookups that miss fall back to [ObjectGraph.get] for layered
+ * graphs and graphs with pending lazy ids. The handle stays valid as the graph changes.
+ */
+class ObjectGraphView<T : Any> internal constructor(
+        val objectGraph: ObjectGraph,
+        val type: Class<T>) {
+
+    /**
+     * The graph type key of [type].
+     */
+    val graphTypeKey: Class<*> = objectGraph.getGraphTypeKey(type)
+
+    @Volatile
+    private var cached: CachedMap = CachedMap(null, -1)
+
+    /**
+     * Returns the map of the type's entities, looking it up again only if it hasn't
+     * been created yet or has been replaced since.
+     */
+    private fun map(): MutableMap<Any, Any>? {
+        val cached = cached
+        val version = objectGraph.mapsVersion.get()
+        if (cached.map != null && cached.version == version) {
+            return cached.map
+        }
+        val ret = objectGraph.results[graphTypeKey]
+        this.cached = CachedMap(ret, version)
+        return ret
+    }
+
+    /**
+     * A map of the type's entities together with the [ObjectGraph.mapsVersion] it was looked up at.
+     */
+    private class CachedMap(val map: MutableMap<Any, Any>?, val version: Int)
+
+    /**
+     * Returns the entity with the given id.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(id: Any?): T? {
+        if (id == null) {
+            return null
+        }
+        return map()?.get(id) as T?
+            ?: if (objectGraph.readsThrough) objectGraph[type, id] else null
+    }
+
+    /**
+     * Returns the entity with the given `long` id, without boxing it if the type is stored by
+     * primitive ids.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(id: Long): T? {
+        val map = map()
+        if (map is PrimitiveIdMap && !map.intIds) {
+            return map.getLong(id) as T?
+                ?: if (objectGraph.readsThrough) objectGraph[type, id] else null
+        }
+        return get(id as Any?)
+    }
+
+    /**
+     * Returns the entity with the given `int` id, without boxing it if the type is stored by
+     * primitive ids.
+     */
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(id: Int): T? {
+        val map = map()
+        if (map is PrimitiveIdMap && map.intIds) {
+            return map.getLong(id.toLong()) as T?
+                ?: if (objectGraph.readsThrough) objectGraph[type, id] else null
+        }
+        return get(id as Any?)
+    }
+
+    /**
+     * Returns the entity with the given id, throws an exception if it's not found.
+     */
+    fun getRequired(id: Any?): T {
+        return get(id)
+            ?: throw EntityNotFoundException("Entity of type ${type.name} with id $id not found")
+    }
+
+    /**
+     * Returns whether or not the graph has the entity with the given id.
+     */
+    fun has(id: Any?): Boolean = get(id) != null
+
+    /**
+     * Returns the entities with the given ids - sorted in the same way as the ids.
+     */
+    fun getList(ids: Collection<*>): List<T> {
+        val ret = ArrayList<T>(ids.size)
+        for (id in ids) {
+            val value = get(id)
+                ?: continue
+            ret.add(value)
+        }
+        return ret
+    }
+
+    override fun toString(): String {
+        return "ObjectGraphView(type=${type.name}, graphTypeKey=${graphTypeKey.name})"
+    }
+}
@@ -0,0 +1,273 @@
+package com.joraph
+
+import java.util.concurrent.locks.StampedLock
+
+/**
+ * A map of entities keyed by `long` or `int` ids, used by the [ObjectGraph] in place of a
+ * [java.util.concurrent.ConcurrentHashMap] for types with primitive ids. Ids are stored unboxed in
+ * an open-addressing table with linear probing, so an entry costs a slot in two arrays instead of
+ * a node and a boxed key. Lookups by primitive id ([getLong]) don't box and don't block, they are
+ * optimistic reads that are retried under the read lock if a write raced with them. Writes take
+ * the write lock. Iteration is over a snapshot of the entries.
+ */
+internal class PrimitiveIdMap(val intIds: Boolean) : AbstractMutableMap<Any, Any>() {
+
+    private val lock = StampedLock()
+    private var ids = LongArray(INITIAL_CAPACITY)
+    private var entities = arrayOfNulls<Any>(INITIAL_CAPACITY)
+    private var count = 0
+
+    /**
+     * Whether or not the given id can be stored in this map.
+     */
+    fun accepts(id: Any?): Boolean = if (intIds) id is Int else id is Long
+
+    /**
+     * Returns the entity with the given id without boxing it.
+     */
+    fun getLong(id: Long): Any? {
+        val stamp = lock.tryOptimisticRead()
+        if (stamp != 0L) {
+            val ret = find(ids, entities, id)
+            if (lock.validate(stamp)) {
+                return ret
+            }
+        }
+        val readStamp = lock.readLock()
+        try {
+            return find(ids, entities, id)
+        } finally {
+            lock.unlockRead(readStamp)
+        }
+    }
+
+    /**
+     * Stores the given entity by the given id without boxing it.
+     */
+    fun putLong(id: Long, value: Any): Any? {
+        val stamp = lock.writeLock()
+        try {
+            if ((count + 1) * 2 > ids.size) {
+                resize(ids.size * 2)
+            }
+            val mask = ids.size - 1
+            var i = slot(id, mask)
+            while (true) {
+                val existing = entities[i]
+                if (existing == null) {
+                    ids[i] = id
+                    entities[i] = value
+                    count++
+                    return null
+                }
+                if (ids[i] == id) {
+                    entities[i] = value
+                    return existing
+                }
+                i = (i + 1) and mask
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    /**
+     * Removes the entity with the given id without boxing it.
+     */
+    fun removeLong(id: Long): Any? {
+        val stamp = lock.writeLock()
+        try {
+            val mask = ids.size - 1
+            var i = slot(id, mask)
+            while (true) {
+                val existing = entities[i]
+                    ?: return null
+                if (ids[i] == id) {
+                    shiftBack(i, mask)
+                    count--
+                    return existing
+                }
+                i = (i + 1) and mask
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    override val size: Int get() {
+        val stamp = lock.readLock()
+        try {
+            return count
+        } finally {
+            lock.unlockRead(stamp)
+        }
+    }
+
+    override fun get(key: Any): Any? = if (accepts(key)) getLong((key as Number).toLong()) else null
+
+    override fun containsKey(key: Any): Boolean = get(key) != null
+
+    override fun put(key: Any, value: Any): Any? {
+        require(accepts(key)) {
+            "ids must be ${if (intIds) "ints" else "longs"}, got ${key.javaClass.name}: $key"
+        }
+        return putLong((key as Number).toLong(), value)
+    }
+
+    override fun remove(key: Any): Any? = if (accepts(key)) removeLong((key as Number).toLong()) else null
+
+    override fun clear() {
+        val stamp = lock.writeLock()
+        try {
+            ids = LongArray(INITIAL_CAPACITY)
+            entities = arrayOfNulls(INITIAL_CAPACITY)
+            count = 0
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    override val entries: MutableSet<MutableMap.MutableEntry<Any, Any>>
+        get() = object : AbstractMutableSet<MutableMap.MutableEntry<Any, Any>>() {
+
+            override val size: Int get() = this@PrimitiveIdMap.size
+
+            override fun add(element: MutableMap.MutableEntry<Any, Any>): Boolean {
+                throw UnsupportedOperationException()
+            }
+
+            override fun iterator(): MutableIterator<MutableMap.MutableEntry<Any, Any>> {
+                val snapshot = snapshot().iterator()
+                return object : MutableIterator<MutableMap.MutableEntry<Any, Any>> {
+                    private var last: Entry? = null
+
+                    override fun hasNext(): Boolean = snapshot.hasNext()
+
+                    override fun next(): MutableMap.MutableEntry<Any, Any> {
+                        val ret = snapshot.next()
+                        last = ret
+                        return ret
+                    }
+
+                    override fun remove() {
+                        val entry = checkNotNull(last) { "next() has not been called" }
+                        removeLong(entry.id)
+                        last = null
+                    }
+                }
+            }
+        }
+
+    private fun snapshot(): List<Entry> {
+        val stamp = lock.readLock()
+        try {
+            val ret = ArrayList<Entry>(count)
+            for (i in ids.indices) {
+                val value = entities[i]
+                if (value != null) {
+                    ret.add(Entry(ids[i], value))
+                }
+            }
+            return ret
+        } finally {
+            lock.unlockRead(stamp)
+        }
+    }
+
+    private fun resize(capacity: Int) {
+        val oldIds = ids
+        val oldValues = entities
+        val newIds = LongArray(capacity)
+        val newValues = arrayOfNulls<Any>(capacity)
+        val mask = capacity - 1
+        for (j in oldIds.indices) {
+            val value = oldValues[j]
+                ?: continue
+            var i = slot(oldIds[j], mask)
+            while (newValues[i] != null) {
+                i = (i + 1) and mask
+            }
+            newIds[i] = oldIds[j]
+            newValues[i] = value
+        }
+        ids = newIds
+        entities = newValues
+    }
+
+    /**
+     * Fills the slot freed at the given index by moving back entries later in its probe sequence,
+     * so that lookups never stop early at it.
+     */
+    private fun shiftBack(freed: Int, mask: Int) {
+        var gap = freed
+        var i = (gap + 1) and mask
+        while (true) {
+            val value = entities[i]
+            if (value == null) {
+                entities[gap] = null
+                return
+            }
+            val home = slot(ids[i], mask)
+            // the entry at i can move to the gap if its home slot isn't between the gap and i
+            if (((i - home) and mask) >= ((i - gap) and mask)) {
+                ids[gap] = ids[i]
+                entities[gap] = value
+                gap = i
+            }
+            i = (i + 1) and mask
+        }
+    }
+
+    private inner class Entry(val id: Long, private var entryValue: Any) : MutableMap.MutableEntry<Any, Any> {
+
+        override val key: Any get() = if (intIds) id.toInt() else id
+
+        override val value: Any get() = entryValue
+
+        override fun setValue(newValue: Any): Any {
+            val ret = entryValue
+            putLong(id, newValue)
+            entryValue = newValue
+            return ret
+        }
+
+        override fun equals(other: Any?): Boolean {
+            return other is Map.Entry<*, *> && key == other.key && value == other.value
+        }
+
+        override fun hashCode(): Int = key.hashCode() xor value.hashCode()
+
+        override fun toString(): String = "$key=$value"
+    }
+
+    companion object {
+
+        private const val INITIAL_CAPACITY = 16
+
+        private fun slot(id: Long, mask: Int): Int {
+            val h = id * -0x61c8864680b583ebL
+            return (h xor (h ushr 32)).toInt() and mask
+        }
+
+        /**
+         * Looks the id up in the given arrays, which may be read while they're being written: the
+         * result is only used if no write happened in the meantime.
+         */
+        private fun find(ids: LongArray, entities: Array<Any?>, id: Long): Any? {
+            if (ids.size != entities.size) {
+                return null
+            }
+            val mask = ids.size - 1
+            var i = slot(id, mask)
+            for (probes in 0 until ids.size) {
+                val value = entities[i]
+                    ?: return null
+                if (ids[i] == id) {
+                    return value
+                }
+                i = (i + 1) and mask
+            }
+            return null
+        }
+    }
+}
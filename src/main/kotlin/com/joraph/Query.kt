@@ -1,5 +1,7 @@
 package com.joraph
 
+import java.util.concurrent.TimeUnit
+
 /**
  * A [Query] is used to define which objects in a graph to load. A [Query] starts
  * with one or more [rootObjects] from which their [com.joraph.schema.Schema] is consulted to determine
@@ -18,6 +20,12 @@ open class Query {
 
     val hasExistingGraph get() = existingGraph != null
 
+    var deadline: Deadline? = null
+        private set
+
+    var lazyLoading: Boolean = false
+        private set
+
     constructor()
     constructor(vararg entityClasses: Class<*>) {
         withEntityClass(*entityClasses)
@@ -79,13 +87,46 @@ open class Query {
     }
 
     /**
-     * Instructs the [Query] to put results into the given [ObjectGraph].
+     * Instructs the [Query] to put results into the given [ObjectGraph]. When the [Query] has root
+     * objects only they and the entities loaded for them are traversed, the entities already in the
+     * [ObjectGraph] are assumed to have been resolved by the queries that put them there. Without
+     * root objects the dependencies of every entity of the [entityClasses] in it are loaded. The
+     * [ObjectGraph] is added to in place, to leave it as it is pass a [FrozenObjectGraph.fork] of it
+     * instead, bearing in mind that a graph that isn't frozen yet has to be copied by
+     * [ObjectGraph.freeze] first, which takes time proportional to its size.
      */
     fun withExistingGraph(existingGraph: ObjectGraph?): Query {
         this.existingGraph = existingGraph
         return this
     }
 
+    /**
+     * Bounds the whole execution of the [Query] by the given [Deadline]. Once it passes no more
+     * loads are started, loads that are still running are cancelled (interrupting blocking loaders)
+     * and the execution fails with a [QueryTimeoutException].
+     */
+    fun withDeadline(deadline: Deadline?): Query {
+        this.deadline = deadline
+        return this
+    }
+
+    /**
+     * Bounds the whole execution of the [Query] to the given timeout from now, see [withDeadline].
+     */
+    fun withDeadline(timeout: Long, unit: TimeUnit): Query {
+        return withDeadline(Deadline.after(timeout, unit))
+    }
+
+    /**
+     * Leaves the entities referenced by lazy foreign keys (see [com.joraph.schema.ForeignKey.lazy])
+     * out of the [ObjectGraph]. The first time one of them is looked up with [ObjectGraph.get] every
+     * id of its type that was left out is loaded at once, along with what those entities reference.
+     */
+    fun withLazyLoading(): Query {
+        this.lazyLoading = true
+        return this
+    }
+
     /**
      * Adds objects that can provide additional arguments to [com.joraph.loader.LoaderFunction]s
      * when executing the [Query].
@@ -0,0 +1,149 @@
+package com.joraph
+
+import com.joraph.loader.EntityLoaderContext
+import com.joraph.loader.EntityLoaderDescriptor
+import com.joraph.schema.ConditionalForeignKey
+import com.joraph.schema.EntityDescriptor
+import com.joraph.schema.ForeignKey
+import com.joraph.schema.Schema
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * A [QueryPlan] is the [Schema] compiled for a given set of [Query.entityClasses] and argument provider
+ * classes. It contains every [EntityDescriptor] reachable from the query's entity classes, the
+ * [ForeignKey]s to follow from each of them and the [EntityLoaderDescriptor] for each type that may be
+ * loaded. [ConditionalForeignKey]s whose argument class can't be satisfied by the argument providers
+ * are dropped, the rest are evaluated once per execution. Plans are cached by the [JoraphContext] so
+ * that executing a [Query] does not need to walk the [Schema].
+ */
+class QueryPlan internal constructor(
+    val key: Key,
+    schema: Schema,
+    loaderContext: EntityLoaderContext) {
+
+    /**
+     * Identifies a [QueryPlan], two queries with equal keys share the same plan.
+     */
+    data class Key(
+        val entityClasses: Set<Class<*>>,
+        val argumentClasses: Set<Class<*>>,
+        val schemaVersion: Long,
+        val loaderVersion: Long) {
+
+        companion object {
+
+            @JvmStatic
+            fun of(query: Query, schema: Schema, loaderContext: EntityLoaderContext) = Key(
+                entityClasses = query.entityClasses.toSet(),
+                argumentClasses = query.arguments.mapTo(mutableSetOf()) { it.javaClass },
+                schemaVersion = schema.version,
+                loaderVersion = loaderContext.version)
+        }
+    }
+
+    /**
+     * The [EntityDescriptor]s whose foreign keys are followed from the start of the query.
+     */
+    val rootDescriptors: List<EntityDescriptor<*>>
+
+    private val descriptors: Map<Class<*>, EntityDescriptor<*>>
+    private val descriptorsByLoadedType: Map<Class<*>, List<EntityDescriptor<*>>>
+    private val edges: Map<Class<*>, List<ForeignKey<*, *>>>
+    private val loaders: Map<Class<*>, EntityLoaderDescriptor<Any, Any, Any, Any>>
+    private val recursiveForeignKeys: Set<ForeignKey<*, *>>
+    private val optionallyReferenced: Set<Class<*>>
+
+    init {
+        val descriptors = mutableMapOf<Class<*>, EntityDescriptor<*>>()
+        val descriptorsByLoadedType = mutableMapOf<Class<*>, List<EntityDescriptor<*>>>()
+        val edges = mutableMapOf<Class<*>, List<ForeignKey<*, *>>>()
+        val loaders = mutableMapOf<Class<*>, EntityLoaderDescriptor<Any, Any, Any, Any>>()
+        val recursiveForeignKeys = Collections.newSetFromMap(IdentityHashMap<ForeignKey<*, *>, Boolean>())
+        val optionallyReferenced = mutableSetOf<Class<*>>()
+
+        fun describe(entityClass: Class<*>): List<EntityDescriptor<*>> {
+            return descriptorsByLoadedType.getOrPut(entityClass) {
+                schema.getEntityDescriptors(entityClass).toList()
+            }
+        }
+
+        rootDescriptors = key.entityClasses
+            .flatMap { describe(it) }
+            .distinct()
+
+        // walk everything reachable from the roots
+        val pending = ArrayDeque(rootDescriptors)
+        while (pending.isNotEmpty()) {
+            val descriptor = pending.removeFirst()
+            if (descriptors.putIfAbsent(descriptor.entityClass, descriptor) != null) {
+                continue
+            }
+
+            val foreignKeys = descriptor.foreignKeys
+                .filter { canLoad(it) }
+            edges[descriptor.entityClass] = foreignKeys
+
+            for (fk in foreignKeys) {
+                // without the schema's cycle analysis every foreign key has to be treated as recursive
+                if (!schema.isValidated || schema.isRecursive(fk)) {
+                    recursiveForeignKeys.add(fk)
+                }
+                if (fk.optional) {
+                    optionallyReferenced.add(fk.foreignEntity)
+                }
+                @Suppress("UNCHECKED_CAST")
+                loaderContext.findLoader(fk.foreignEntity)
+                    ?.let { loaders[fk.foreignEntity] = it as EntityLoaderDescriptor<Any, Any, Any, Any> }
+                pending.addAll(describe(fk.foreignEntity))
+            }
+        }
+
+        this.descriptors = descriptors
+        this.descriptorsByLoadedType = descriptorsByLoadedType
+        this.edges = edges
+        this.loaders = loaders
+        this.recursiveForeignKeys = recursiveForeignKeys
+        this.optionallyReferenced = optionallyReferenced
+    }
+
+    private fun canLoad(fk: ForeignKey<*, *>): Boolean {
+        return fk !is ConditionalForeignKey<*, *, *>
+                || key.argumentClasses.any { fk.argumentClass.isAssignableFrom(it) }
+    }
+
+    /**
+     * Returns the [EntityDescriptor] for exactly the given entity class if it is reachable
+     * by this plan, or null.
+     */
+    fun getDescriptor(entityClass: Class<*>): EntityDescriptor<*>? = descriptors[entityClass]
+
+    /**
+     * Returns the [EntityDescriptor]s whose foreign keys are followed once entities
+     * of the given type have been loaded.
+     */
+    fun getDescriptorsLoadedBy(entityClass: Class<*>): List<EntityDescriptor<*>>
+            = descriptorsByLoadedType[entityClass] ?: emptyList()
+
+    /**
+     * Returns the [ForeignKey]s to follow from entities of the given class. [ConditionalForeignKey]s
+     * that are returned still need to be evaluated against the query's arguments.
+     */
+    fun getForeignKeys(entityClass: Class<*>): List<ForeignKey<*, *>> = edges[entityClass] ?: emptyList()
+
+    /**
+     * Returns whether or not following the given [ForeignKey] is a recursion step, see [Schema.isRecursive].
+     */
+    fun isRecursive(foreignKey: ForeignKey<*, *>): Boolean = foreignKey in recursiveForeignKeys
+
+    /**
+     * Returns whether or not entities of the given class are referenced by any optional [ForeignKey]s.
+     */
+    fun isOptionallyReferenced(entityClass: Class<*>): Boolean = entityClass in optionallyReferenced
+
+    /**
+     * Returns the [EntityLoaderDescriptor] for the given entity class, or null if one isn't configured.
+     */
+    fun getLoader(entityClass: Class<*>): EntityLoaderDescriptor<Any, Any, Any, Any>? = loaders[entityClass]
+
+}
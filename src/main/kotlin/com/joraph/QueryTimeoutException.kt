@@ -0,0 +1,7 @@
+package com.joraph
+
+class QueryTimeoutException : JoraphException {
+    constructor(message: String?) : super(message)
+    constructor(message: String?, cause: Throwable?) : super(message, cause)
+    constructor(cause: Throwable?) : super(cause)
+}
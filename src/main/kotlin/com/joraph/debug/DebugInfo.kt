@@ -2,12 +2,13 @@ package com.joraph.debug
 
 import com.joraph.ObjectGraph
 import java.util.ArrayList
+import java.util.Collections
 
 
 class DebugInfo {
 
-    private val objectGraphs: MutableSet<ObjectGraph> = LinkedHashSet()
-    private val loaderDebugs: MutableList<LoaderDebug> = ArrayList()
+    private val objectGraphs: MutableSet<ObjectGraph> = Collections.synchronizedSet(LinkedHashSet())
+    private val loaderDebugs: MutableList<LoaderDebug> = Collections.synchronizedList(ArrayList())
 
     fun addObjectGraph(objectGraph: ObjectGraph) {
         objectGraphs.add(objectGraph)
@@ -17,8 +18,10 @@ class DebugInfo {
         loaderDebugs.add(loaderDebug)
     }
 
+    @JvmOverloads
     fun addLoaderDebug(
-        entityClass: Class<*>, loaderTimeMillis: Long, ids: Collection<*>, objects: List<*>) {
+        entityClass: Class<*>, loaderTimeMillis: Long, ids: Collection<*>, objects: List<*>,
+        chunkIndex: Int? = null, chunkCount: Int? = null) {
         val loaderDebug = LoaderDebug()
         loaderDebug.entityClass = entityClass
         loaderDebug.loadedEntityCount = objects.size
@@ -26,6 +29,8 @@ class DebugInfo {
         loaderDebug.loaderTimeMillis = loaderTimeMillis
         loaderDebug.entityIdCount = ids.size
         loaderDebug.entityIds = ids
+        loaderDebug.chunkIndex = chunkIndex
+        loaderDebug.chunkCount = chunkCount
         loaderDebugs.add(loaderDebug)
     }
 
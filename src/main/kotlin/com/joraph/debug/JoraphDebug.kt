@@ -54,12 +54,14 @@ object JoraphDebug {
     }
 
     @JvmStatic
+    @JvmOverloads
     fun addLoaderDebug(
-        entityClass: Class<*>, loaderTimeMillis: Long, ids: Collection<*>, objects: List<*>) {
+        entityClass: Class<*>, loaderTimeMillis: Long, ids: Collection<*>, objects: List<*>,
+        chunkIndex: Int? = null, chunkCount: Int? = null) {
         if (!hasDebugInfo()) {
             return
         }
-        getDebugInfo()?.addLoaderDebug(entityClass, loaderTimeMillis, ids, objects)
+        getDebugInfo()?.addLoaderDebug(entityClass, loaderTimeMillis, ids, objects, chunkIndex, chunkCount)
     }
 }
 
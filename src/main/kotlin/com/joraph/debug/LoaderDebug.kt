@@ -7,4 +7,6 @@ class LoaderDebug {
     var loaderTimeMillis: Long? = null
     var entityIdCount: Int? = null
     var loadedEntityCount: Int? = null
+    var chunkIndex: Int? = null
+    var chunkCount: Int? = null
 }
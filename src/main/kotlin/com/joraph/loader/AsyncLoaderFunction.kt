@@ -0,0 +1,21 @@
+package com.joraph.loader
+
+import java.util.concurrent.CompletableFuture
+
+/**
+ * The non-blocking counterpart of [LoaderFunction]. [AsyncLoaderFunction] assumes a
+ * multi-get pattern by primary key and returns a [CompletableFuture] that completes
+ * with the entities once they have been loaded, without tying up a thread while
+ * waiting on I/O.
+ */
+@FunctionalInterface
+fun interface AsyncLoaderFunction<Arg, ID, Entity> {
+    fun load(argument: Arg?, ids: List<ID>): CompletableFuture<List<Entity>>
+}
+
+/**
+ * Adapts the [AsyncLoaderFunction] to a [LoaderFunction] that blocks until the load completes.
+ */
+fun <Arg, ID, Entity> AsyncLoaderFunction<Arg, ID, Entity>.asLoaderFunction(): LoaderFunction<Arg, ID, Entity> {
+    return LoaderFunction { argument, ids -> load(argument, ids).join() }
+}
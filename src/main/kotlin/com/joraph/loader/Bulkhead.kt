@@ -0,0 +1,219 @@
+package com.joraph.loader
+
+import com.joraph.Deadline
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Isolates the loads of a loader from those of other loaders by capping how many of them may run
+ * at once. Loads beyond the [ConcurrencyLimit] wait in a queue of up to [maxQueued] loads, and loads
+ * that don't fit in the queue are handled according to the [rejectionPolicy]. No thread is blocked
+ * while a load waits. The limit is either fixed or adapts to the latency of the loads, see
+ * [AimdLimit] and [GradientLimit]. The counters describe how saturated the bulkhead has been.
+ */
+class Bulkhead @JvmOverloads constructor(
+    val limit: ConcurrencyLimit,
+    val maxQueued: Int = Int.MAX_VALUE,
+    val rejectionPolicy: RejectionPolicy = RejectionPolicy.FAIL) {
+
+    @JvmOverloads
+    constructor(
+        maxConcurrent: Int,
+        maxQueued: Int = Int.MAX_VALUE,
+        rejectionPolicy: RejectionPolicy = RejectionPolicy.FAIL) : this(FixedLimit(maxConcurrent), maxQueued, rejectionPolicy)
+
+    /**
+     * The number of loads that may run at once right now.
+     */
+    val maxConcurrent: Int get() = limit.limit
+
+    /**
+     * What to do with a load when the bulkhead and its queue are full.
+     */
+    enum class RejectionPolicy {
+
+        /**
+         * Fail the load with a [BulkheadFullException].
+         */
+        FAIL
+    }
+
+    private val lock = Any()
+    private val queue = ArrayDeque<() -> Unit>()
+    private val starting = ThreadLocal<ArrayDeque<() -> Unit>>()
+    private var active = 0
+    private var peakActive = 0
+    private var peakQueued = 0
+
+    private val started = AtomicLong()
+    private val queued = AtomicLong()
+    private val rejected = AtomicLong()
+
+    init {
+        require(maxQueued >= 0) { "maxQueued must not be negative" }
+    }
+
+    /**
+     * The number of loads running now.
+     */
+    val activeCount: Int get() = synchronized(lock) { active }
+
+    /**
+     * The number of loads waiting to start now.
+     */
+    val queuedCount: Int get() = synchronized(lock) { queue.size }
+
+    /**
+     * The most loads that have been running at once.
+     */
+    val peakActiveCount: Int get() = synchronized(lock) { peakActive }
+
+    /**
+     * The most loads that have been waiting to start at once.
+     */
+    val peakQueuedCount: Int get() = synchronized(lock) { peakQueued }
+
+    /**
+     * The total number of loads started.
+     */
+    val startedCount: Long get() = started.get()
+
+    /**
+     * The total number of loads that had to wait in the queue.
+     */
+    val queuedTotalCount: Long get() = queued.get()
+
+    /**
+     * The total number of loads that found the bulkhead and its queue full.
+     */
+    val rejectedCount: Long get() = rejected.get()
+
+    /**
+     * Starts the load made by the given function once the bulkhead has room for it.
+     */
+    fun <T> submit(entityClass: Class<*>, call: () -> CompletableFuture<T>): CompletableFuture<T> {
+        val ret = CompletableFuture<T>()
+        // the deadline of the query making the load, which may be started from another thread
+        val deadline = Deadline.current()
+        val task = { start(call, ret, deadline) }
+        val startNow = synchronized(lock) {
+            when {
+                active < limit.limit -> {
+                    acquire()
+                    true
+                }
+                queue.size < maxQueued -> {
+                    queue.addLast(task)
+                    queued.incrementAndGet()
+                    peakQueued = maxOf(peakQueued, queue.size)
+                    false
+                }
+                else -> {
+                    rejected.incrementAndGet()
+                    ret.completeExceptionally(BulkheadFullException(entityClass, maxConcurrent, maxQueued))
+                    return ret
+                }
+            }
+        }
+        if (startNow) {
+            startAll(listOf(task))
+        }
+        return ret
+    }
+
+    private fun acquire() {
+        active++
+        peakActive = maxOf(peakActive, active)
+    }
+
+    private fun <T> start(call: () -> CompletableFuture<T>, ret: CompletableFuture<T>, deadline: Deadline?) {
+        // cancelled while it was waiting
+        if (ret.isDone) {
+            release()
+            return
+        }
+
+        started.incrementAndGet()
+        val inFlight = activeCount
+        val start = System.nanoTime()
+        val future = try {
+            call()
+        } catch (t: Throwable) {
+            val failed = CompletableFuture<T>()
+            failed.completeExceptionally(t)
+            failed
+        }
+        future.whenComplete { value, error ->
+            limit.onSample(System.nanoTime() - start, inFlight, isDropped(error, deadline))
+            release()
+            if (error != null) {
+                ret.completeExceptionally(error)
+            } else {
+                ret.complete(value)
+            }
+        }
+        ret.whenComplete { _, _ -> future.cancel(true) }
+    }
+
+    /**
+     * Whether or not the load failed in a way that signals overload: it failed (or timed out), or it
+     * was cancelled because the deadline of the query making it passed. Loads cancelled for other
+     * reasons, such as another load of the query failing, don't count.
+     */
+    private fun isDropped(error: Throwable?, deadline: Deadline?): Boolean {
+        val cause = (error as? CompletionException)?.cause ?: error
+        return when (cause) {
+            null -> false
+            is CancellationException -> deadline?.isExpired == true
+            else -> true
+        }
+    }
+
+    /**
+     * Hands the finished load's slot to the next load in the queue, if there is one, and starts
+     * as many more as the limit now allows.
+     */
+    private fun release() {
+        val next = synchronized(lock) {
+            active--
+            val next = mutableListOf<() -> Unit>()
+            while (active < limit.limit && queue.isNotEmpty()) {
+                next.add(queue.removeFirst())
+                acquire()
+            }
+            next
+        }
+        startAll(next)
+    }
+
+    /**
+     * Starts the given loads one after another. Loads that are started while doing so on the same
+     * thread, by loads that complete right away or were cancelled while queued, are added to the
+     * ones being started rather than started recursively.
+     */
+    private fun startAll(tasks: List<() -> Unit>) {
+        if (tasks.isEmpty()) {
+            return
+        }
+        val pending = starting.get()
+        if (pending != null) {
+            pending.addAll(tasks)
+            return
+        }
+        val toStart = ArrayDeque(tasks)
+        starting.set(toStart)
+        try {
+            while (toStart.isNotEmpty()) {
+                toStart.removeFirst()()
+            }
+        } finally {
+            starting.remove()
+        }
+    }
+
+    override fun toString(): String {
+        return "Bulkhead(limit=$limit, maxQueued=$maxQueued, rejectionPolicy=$rejectionPolicy)"
+    }
+}
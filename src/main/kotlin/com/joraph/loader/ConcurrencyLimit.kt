@@ -0,0 +1,133 @@
+package com.joraph.loader
+
+import java.util.concurrent.TimeUnit
+import kotlin.math.sqrt
+
+/**
+ * Decides how many loads a [Bulkhead] lets run at once. Adaptive limits adjust [limit] from the
+ * latency of completed loads, which the [Bulkhead] reports through [onSample].
+ */
+interface ConcurrencyLimit {
+
+    /**
+     * The number of loads that may run at once right now.
+     */
+    val limit: Int
+
+    /**
+     * Called when a load completes with its latency, the number of loads that were running
+     * when it started and whether it failed (or timed out), a sign that the backend is overloaded.
+     */
+    fun onSample(latencyNanos: Long, inFlight: Int, dropped: Boolean)
+}
+
+/**
+ * A [ConcurrencyLimit] that never changes.
+ */
+class FixedLimit(
+    override val limit: Int) : ConcurrencyLimit {
+
+    init {
+        require(limit > 0) { "limit must be positive" }
+    }
+
+    override fun onSample(latencyNanos: Long, inFlight: Int, dropped: Boolean) {
+    }
+
+    override fun toString(): String = "FixedLimit($limit)"
+}
+
+/**
+ * An additive-increase/multiplicative-decrease [ConcurrencyLimit]. The limit grows by one while
+ * loads succeed within [timeoutNanos] and the limit is being used, and is multiplied by
+ * [backoffRatio] when a load fails or is slower than that.
+ */
+class AimdLimit @JvmOverloads constructor(
+    initialLimit: Int = 10,
+    val minLimit: Int = 1,
+    val maxLimit: Int = 200,
+    val backoffRatio: Double = 0.9,
+    val timeoutNanos: Long = TimeUnit.SECONDS.toNanos(5)) : ConcurrencyLimit {
+
+    init {
+        require(minLimit in 1..maxLimit) { "minLimit must be positive and no more than maxLimit" }
+        require(backoffRatio > 0 && backoffRatio < 1) { "backoffRatio must be between 0 and 1" }
+    }
+
+    @Volatile
+    override var limit: Int = initialLimit.coerceIn(minLimit, maxLimit)
+        private set
+
+    @Synchronized
+    override fun onSample(latencyNanos: Long, inFlight: Int, dropped: Boolean) {
+        limit = if (dropped || latencyNanos > timeoutNanos) {
+            (limit * backoffRatio).toInt().coerceAtLeast(minLimit)
+        } else if (inFlight * 2 >= limit) {
+            // only grow while the limit is actually being used
+            (limit + 1).coerceAtMost(maxLimit)
+        } else {
+            limit
+        }
+    }
+
+    override fun toString(): String = "AimdLimit($limit)"
+}
+
+/**
+ * A [ConcurrencyLimit] that follows the gradient between the lowest latency seen, taken to be the
+ * latency of the backend when it isn't queueing, and the recent latency. While they're about the
+ * same the limit grows by a queue allowance of sqrt(limit), once the recent latency rises above
+ * [tolerance] times the lowest the limit shrinks in proportion. The lowest latency is forgotten
+ * every [resetAfterSamples] samples so that it follows changes in the backend.
+ */
+class GradientLimit @JvmOverloads constructor(
+    initialLimit: Int = 10,
+    val minLimit: Int = 1,
+    val maxLimit: Int = 200,
+    val tolerance: Double = 1.5,
+    val smoothing: Double = 0.2,
+    val resetAfterSamples: Int = 1000) : ConcurrencyLimit {
+
+    init {
+        require(minLimit in 1..maxLimit) { "minLimit must be positive and no more than maxLimit" }
+        require(tolerance >= 1) { "tolerance must be at least 1" }
+        require(smoothing > 0 && smoothing <= 1) { "smoothing must be between 0 and 1" }
+        require(resetAfterSamples > 0) { "resetAfterSamples must be positive" }
+    }
+
+    private var estimatedLimit: Double = initialLimit.coerceIn(minLimit, maxLimit).toDouble()
+    private var minLatencyNanos = Long.MAX_VALUE
+    private var recentLatencyNanos = 0.0
+    private var samples = 0
+
+    @Volatile
+    override var limit: Int = estimatedLimit.toInt()
+        private set
+
+    @Synchronized
+    override fun onSample(latencyNanos: Long, inFlight: Int, dropped: Boolean) {
+        if (++samples % resetAfterSamples == 0) {
+            minLatencyNanos = Long.MAX_VALUE
+        }
+        minLatencyNanos = minOf(minLatencyNanos, latencyNanos)
+        recentLatencyNanos = if (recentLatencyNanos == 0.0) {
+            latencyNanos.toDouble()
+        } else {
+            recentLatencyNanos * (1 - smoothing) + latencyNanos * smoothing
+        }
+
+        val gradient = if (dropped) {
+            0.5
+        } else {
+            (tolerance * minLatencyNanos / recentLatencyNanos).coerceIn(0.5, 1.0)
+        }
+        // don't grow a limit that isn't being used
+        val queueAllowance = if (inFlight * 2 >= estimatedLimit) sqrt(estimatedLimit) else 0.0
+        val newLimit = estimatedLimit * gradient + queueAllowance
+        estimatedLimit = (estimatedLimit * (1 - smoothing) + newLimit * smoothing)
+            .coerceIn(minLimit.toDouble(), maxLimit.toDouble())
+        limit = estimatedLimit.toInt()
+    }
+
+    override fun toString(): String = "GradientLimit($limit)"
+}
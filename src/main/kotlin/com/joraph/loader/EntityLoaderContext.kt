@@ -1,17 +1,47 @@
 package com.joraph.loader
 
+import com.joraph.Deadline
 import com.joraph.JoraphException
+import com.joraph.JoraphScheduler
+import com.joraph.debug.DebugInfo
 import com.joraph.debug.JoraphDebug
+import com.joraph.schema.Schema
+import com.joraph.schema.UnknownEntityDescriptorException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.asCoroutineDispatcher
 
 /**
  * Manages all of the loaders responsible for loading entities. Each [com.joraph.JoraphContext] maintains
  * one [EntityLoaderContext]. This is the heart of the Joraph architecture. Joraph assumes that all entities
  * can be loaded by their primary key using a multi-get pattern. The [LoaderFunction] is the single interface
- * used by Joraph to load entities.
+ * used by Joraph to load entities. The [Schema] is used to match entities returned by coalescing and single
+ * flight loaders back up with the ids they were loaded by.
  */
-open class EntityLoaderContext {
+open class EntityLoaderContext @JvmOverloads constructor(
+    val schema: Schema? = null) {
 
     private val loaders: MutableMap<Class<*>, EntityLoaderDescriptor<*, *, *, *>> = HashMap()
+    private val coalescers: MutableMap<EntityLoaderDescriptor<*, *, *, *>, LoadCoalescer> = ConcurrentHashMap()
+    private val singleFlight: SingleFlight = SingleFlight(::primaryKeyOf)
+    private val hedgers: MutableMap<EntityLoaderDescriptor<*, *, *, *>, Hedger> = ConcurrentHashMap()
+    private val shardBulkheads: MutableMap<EntityLoaderDescriptor<*, *, *, *>, MutableMap<Int, Bulkhead>> = ConcurrentHashMap()
+
+    /**
+     * Incremented every time a loader is added, used to invalidate anything
+     * that has looked up loaders ahead of time (such as a [com.joraph.QueryPlan]).
+     */
+    @Volatile
+    var version: Long = 0
+        private set
 
     /**
      * Starts and returns a builder for adding a [EntityLoaderDescriptorBuilder] to the context. Call
@@ -26,6 +56,7 @@ open class EntityLoaderContext {
      */
     open fun <Entity> withLoader(entityClass: Class<Entity>, loader: EntityLoaderDescriptor<*, *, *, Entity>): EntityLoaderContext {
         loaders[entityClass] = loader
+        version++
         return this
     }
 
@@ -51,6 +82,50 @@ open class EntityLoaderContext {
             loader = loader))
     }
 
+    /**
+     * Adds the given [AsyncLoaderFunction] as a [EntityLoaderDescriptor] to the context.
+     */
+    open fun <ID, Entity> withAsyncLoader(entityClass: Class<Entity>, loader: AsyncLoaderFunction<Any, ID, Entity>): EntityLoaderContext {
+        return withLoader(entityClass, EntityLoaderDescriptor<Any, Any, ID, Entity>(
+            argumentProviderClass = null,
+            argumentExtractor = null,
+            entityClass = entityClass,
+            asyncLoader = loader))
+    }
+
+    /**
+     * Adds the given [AsyncLoaderFunction] as a [EntityLoaderDescriptor] to the context.
+     */
+    open fun <ArgProvider, Arg, ID, Entity> withAsyncLoader(
+        argumentProviderClass: Class<ArgProvider>? = null,
+        argumentExtractor: ArgumentExtractor<ArgProvider, Arg>? = null,
+        entityClass: Class<Entity>,
+        loader: AsyncLoaderFunction<Arg, ID, Entity>): EntityLoaderContext {
+        return withLoader(entityClass, EntityLoaderDescriptor(
+            argumentProviderClass = argumentProviderClass,
+            argumentExtractor = argumentExtractor,
+            entityClass = entityClass,
+            asyncLoader = loader))
+    }
+
+    /**
+     * Adds the given [SuspendLoaderFunction] as a [EntityLoaderDescriptor] to the context.
+     */
+    open fun <ID, Entity> withSuspendLoader(entityClass: Class<Entity>, loader: SuspendLoaderFunction<Any, ID, Entity>): EntityLoaderContext {
+        return withLoader(entityClass, EntityLoaderDescriptor<Any, Any, ID, Entity>(
+            argumentProviderClass = null,
+            argumentExtractor = null,
+            entityClass = entityClass,
+            suspendLoader = loader))
+    }
+
+    /**
+     * Adds the given suspending function as a [EntityLoaderDescriptor] to the context.
+     */
+    open fun <ID, Entity> withSuspendLoader(entityClass: Class<Entity>, loader: suspend (Collection<ID>) -> Collection<Entity>): EntityLoaderContext {
+        return withSuspendLoader(entityClass, suspendLoaderFunction<Any, ID, Entity> { _, ids -> loader(ids).toList() })
+    }
+
     /**
      * Adds the given function as a [EntityLoaderDescriptor] to the context.
      */
@@ -91,6 +166,13 @@ open class EntityLoaderContext {
             ?: throw UnconfiguredLoaderException(entityClass)
     }
 
+    /**
+     * Returns the [EntityLoaderDescriptor] configured for the given entity, or null if not found.
+     */
+    open fun findLoader(entityClass: Class<*>): EntityLoaderDescriptor<*, *, *, *>? {
+        return loaders[entityClass]
+    }
+
     /**
      * Uses configured loaders to load entities of the given type with the given ids.
      */
@@ -104,9 +186,398 @@ open class EntityLoaderContext {
      */
     @Throws(UnconfiguredLoaderException::class, MissingLoaderArgumentException::class, JoraphException::class)
     open fun <ID, Entity> load(entityClass: Class<Entity>, arguments: List<Any?>, ids: Iterable<ID>): List<Entity> {
+        return load(getLoader<Any, Any, ID, Entity>(entityClass), arguments, ids)
+    }
+
+    /**
+     * Uses the given [EntityLoaderDescriptor] to load entities with the given arguments and ids.
+     */
+    @Throws(MissingLoaderArgumentException::class, JoraphException::class)
+    open fun <ID, Entity> load(loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, arguments: List<Any?>, ids: Iterable<ID>): List<Entity> {
+        val argument = getArgument(loader, arguments)
+        val idList = ids.toMutableList()
+        if (idList.size <= loader.maxBatchSize) {
+            return invoke(loader, argument, idList, null)
+        }
+        // there's no executor to fan out on here, so chunks are loaded one after another
+        val chunks = idList.chunked(loader.maxBatchSize)
+        return chunks.withIndex().flatMap { (index, chunk) ->
+            invoke(loader, argument, chunk, Chunk(index, chunks.size))
+        }
+    }
+
+    /**
+     * Uses configured loaders to load entities of the given type with the given arguments and ids without
+     * blocking the calling thread. [AsyncLoaderFunction]s are invoked directly, [SuspendLoaderFunction]s are
+     * started as coroutines in the given [CoroutineScope] if there is one, and [LoaderFunction]s are run on
+     * the given [Executor].
+     */
+    @JvmOverloads
+    open fun <ID, Entity> loadAsync(
+        entityClass: Class<Entity>, arguments: List<Any?>, ids: Iterable<ID>, executor: Executor,
+        scope: CoroutineScope? = null): CompletableFuture<List<Entity>> {
+        return try {
+            loadAsync(getLoader<Any, Any, ID, Entity>(entityClass), arguments, ids, executor, scope)
+        } catch (t: Throwable) {
+            failedFuture(t)
+        }
+    }
+
+    /**
+     * Uses the given [EntityLoaderDescriptor] to load entities with the given arguments and ids without
+     * blocking the calling thread. [AsyncLoaderFunction]s are invoked directly, [SuspendLoaderFunction]s are
+     * started as coroutines in the given [CoroutineScope] if there is one, and [LoaderFunction]s are run on
+     * the given [Executor]. Loads for coalescing loaders are batched together with other loads that have
+     * the same argument before the loader is invoked, and single flight loaders only fetch the ids that
+     * aren't already being fetched by another load.
+     */
+    @JvmOverloads
+    @Suppress("UNCHECKED_CAST")
+    open fun <ID, Entity> loadAsync(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, arguments: List<Any?>, ids: Iterable<ID>, executor: Executor,
+        scope: CoroutineScope? = null): CompletableFuture<List<Entity>> {
+        val argument = try {
+            getArgument(loader, arguments)
+        } catch (t: Throwable) {
+            return failedFuture(t)
+        }
+        return loadAsyncWithArgument(loader, argument, ids, executor, scope)
+    }
+
+    /**
+     * Like [loadAsync], but with the argument to pass to the loader already taken from the argument
+     * providers, for loads made on behalf of several queries with the same argument.
+     */
+    @Suppress("UNCHECKED_CAST")
+    internal fun <ID, Entity> loadAsyncWithArgument(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, argument: Any?, ids: Iterable<ID>, executor: Executor,
+        scope: CoroutineScope?): CompletableFuture<List<Entity>> {
+        val idsToLoad = ids.toMutableList()
+
+        val ret = if (!loader.singleFlight) {
+            dispatch(loader, argument, idsToLoad, executor, scope)
+        } else {
+            singleFlight.load(loader.entityClass, argument, idsToLoad as List<Any?>) { remaining ->
+                dispatch(loader, argument, remaining as List<ID>, executor, scope)
+            } as CompletableFuture<List<Entity>>
+        }
+        return if (loader.timeoutNanos > 0) withTimeout(loader, ret) else ret
+    }
+
+    /**
+     * Returns a future that completes with the given load, or fails with a [LoaderTimeoutException]
+     * if it takes longer than the loader's timeout, in which case the load is cancelled.
+     */
+    private fun <Entity> withTimeout(
+        loader: EntityLoaderDescriptor<*, *, *, *>, load: CompletableFuture<List<Entity>>): CompletableFuture<List<Entity>> {
+        val ret = CompletableFuture<List<Entity>>()
+        val timer = JoraphScheduler.schedule(loader.timeoutNanos, TimeUnit.NANOSECONDS) {
+            val timeoutMillis = TimeUnit.NANOSECONDS.toMillis(loader.timeoutNanos)
+            if (ret.completeExceptionally(LoaderTimeoutException(loader.entityClass, timeoutMillis))) {
+                load.cancel(true)
+            }
+        }
+        load.whenComplete { entities, error ->
+            timer.cancel(false)
+            if (error != null) {
+                ret.completeExceptionally(error)
+            } else {
+                ret.complete(entities)
+            }
+        }
+        ret.whenComplete { _, error ->
+            if (error is CancellationException) {
+                load.cancel(true)
+            }
+        }
+        return ret
+    }
+
+    /**
+     * Invokes the given loader, or adds the ids to the current batch for it if it's a coalescing loader.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun <ID, Entity> dispatch(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, argument: Any?, ids: List<ID>, executor: Executor,
+        scope: CoroutineScope?): CompletableFuture<List<Entity>> {
+        if (!loader.isCoalescing) {
+            return invokeChunked(loader, argument, ids, executor, scope)
+        }
 
-        // find the loader
-        val loader: EntityLoaderDescriptor<Any, Any, ID, Entity> = getLoader(entityClass)
+        // coalesced loads may outlive the query that started them, so they aren't bound to its scope
+        val coalescer = coalescers.computeIfAbsent(loader) {
+            LoadCoalescer(loader.coalescingWindowNanos, loader.coalescingMaxBatchSize, ::primaryKeyOf)
+        }
+        return coalescer.load(argument, ids as List<Any?>) { batchArgument, batchIds ->
+            invokeChunked(loader, batchArgument, batchIds as List<ID>, executor, null)
+        } as CompletableFuture<List<Entity>>
+    }
+
+    /**
+     * Invokes the given loader, splitting the ids into chunks of at most its
+     * [EntityLoaderDescriptor.maxBatchSize] and running up to [EntityLoaderDescriptor.maxParallelChunks]
+     * of them at once. The loaded entities are merged in chunk order.
+     */
+    private fun <ID, Entity> invokeChunked(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, argument: Any?, ids: List<ID>, executor: Executor,
+        scope: CoroutineScope?): CompletableFuture<List<Entity>> {
+        if (ids.size <= loader.maxBatchSize) {
+            return invokeAsync(loader, argument, ids, executor, scope, null)
+        }
+
+        val chunks = ids.chunked(loader.maxBatchSize)
+        val results = arrayOfNulls<List<Entity>>(chunks.size)
+        val started = ArrayList<CompletableFuture<List<Entity>>>(chunks.size)
+        // guarded by started, set once the chunks started so far have been cancelled
+        var failed = false
+        val nextChunk = AtomicInteger()
+        val startsRequested = AtomicInteger()
+        val remaining = AtomicInteger(chunks.size)
+        val ret = CompletableFuture<List<Entity>>()
+
+        // capture these now, later chunks are started from the threads that finish earlier ones
+        val debugInfo = JoraphDebug.getDebugInfo()
+        val deadline = Deadline.current()
+
+        lateinit var requestNextChunk: () -> Unit
+
+        fun startNextChunk() {
+            val index = nextChunk.getAndIncrement()
+            if (index >= chunks.size || synchronized(started) { failed }) {
+                return
+            }
+            val future = withThreadContext(debugInfo, deadline) {
+                invokeAsync(loader, argument, chunks[index], executor, scope, Chunk(index, chunks.size))
+            }
+            // the load may have failed while this chunk was being started
+            val cancel = synchronized(started) {
+                started.add(future)
+                failed
+            }
+            if (cancel) {
+                future.cancel(true)
+                return
+            }
+            future.whenComplete { entities, error ->
+                if (error != null) {
+                    ret.completeExceptionally(error)
+                    return@whenComplete
+                }
+                results[index] = entities
+                if (remaining.decrementAndGet() == 0) {
+                    ret.complete(results.flatMap { it!! })
+                } else {
+                    requestNextChunk()
+                }
+            }
+        }
+
+        // chunks that complete right away ask for the next one while it's being started, so
+        // rather than recursing, whoever asks first starts chunks until nobody is asking
+        requestNextChunk = {
+            if (startsRequested.getAndIncrement() == 0) {
+                do {
+                    startNextChunk()
+                } while (startsRequested.decrementAndGet() > 0)
+            }
+        }
+
+        ret.whenComplete { _, error ->
+            if (error != null) {
+                val toCancel = synchronized(started) {
+                    failed = true
+                    ArrayList(started)
+                }
+                toCancel.forEach { it.cancel(true) }
+            }
+        }
+        repeat(minOf(loader.maxParallelChunks, chunks.size)) { requestNextChunk() }
+        return ret
+    }
+
+    /**
+     * Invokes the given loader with the given argument and ids on the calling thread.
+     */
+    private fun <ID, Entity> invoke(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, argument: Any?, ids: List<ID>, chunk: Chunk?): List<Entity> {
+        return try {
+            val start = System.currentTimeMillis()
+            val ret = loader.loader.load(argument, ids)
+            JoraphDebug.addLoaderDebug(
+                loader.entityClass, System.currentTimeMillis() - start, ids, ret, chunk?.index, chunk?.count)
+            ret
+        } catch (t: Throwable) {
+            throw JoraphException("Error invoking loader: $loader with ids: ${ids.joinToString(separator = ",")}", t)
+        }
+    }
+
+    /**
+     * Invokes the given loader with the given argument and ids without blocking the calling thread,
+     * hedging the load if the loader has a [HedgingPolicy].
+     */
+    private fun <ID, Entity> invokeAsync(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, argument: Any?, ids: List<ID>, executor: Executor,
+        scope: CoroutineScope?, chunk: Chunk?): CompletableFuture<List<Entity>> {
+        val policy = loader.hedgingPolicy
+            ?: return invokeOnceAsync(loader, argument, ids, executor, scope, chunk)
+        return hedgers.computeIfAbsent(loader) { Hedger(policy) }
+            .load { invokeOnceAsync(loader, argument, ids, executor, scope, chunk) }
+    }
+
+    /**
+     * Invokes the given loader with the given argument and ids without blocking the calling thread,
+     * once there is room for it in the loader's [Bulkhead] if it has one.
+     */
+    private fun <ID, Entity> invokeOnceAsync(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, argument: Any?, ids: List<ID>, executor: Executor,
+        scope: CoroutineScope?, chunk: Chunk?): CompletableFuture<List<Entity>> {
+        val bulkhead = loader.bulkhead
+            ?: return startAsync(loader, argument, ids, executor, scope, chunk)
+        // capture these now, the load may be started from another thread
+        val debugInfo = JoraphDebug.getDebugInfo()
+        val deadline = Deadline.current()
+        return bulkhead.submit(loader.entityClass) {
+            withThreadContext(debugInfo, deadline) { startAsync(loader, argument, ids, executor, scope, chunk) }
+        }
+    }
+
+    /**
+     * Invokes the given loader with the given argument and ids without blocking the calling thread. The
+     * current [Deadline] is carried over to the loader, and cancelling the returned future cancels the
+     * load, interrupting blocking loaders. [SuspendLoaderFunction]s started outside of a coroutine are
+     * dispatched on the given executor, never on the calling thread.
+     */
+    private fun <ID, Entity> startAsync(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, argument: Any?, ids: List<ID>, executor: Executor,
+        scope: CoroutineScope?, chunk: Chunk?): CompletableFuture<List<Entity>> {
+        val debugInfo = JoraphDebug.getDebugInfo()
+        val deadline = Deadline.current()
+
+        val asyncLoader = loader.suspendLoader
+            ?.asAsyncLoaderFunction(
+                scope ?: GlobalScope,
+                (deadline?.asContextElement() ?: EmptyCoroutineContext)
+                    + if (scope == null) executor.asCoroutineDispatcher() else EmptyCoroutineContext)
+            ?: loader.asyncLoader
+        val shardedLoader = loader.shardedLoader
+        if (asyncLoader == null && shardedLoader != null) {
+            return startShardedAsync(loader, shardedLoader, argument, ids, executor, chunk)
+        }
+        if (asyncLoader == null) {
+            return InterruptibleFuture.supply(executor) {
+                withThreadContext(debugInfo, deadline) { invoke(loader, argument, ids, chunk) }
+            }
+        }
+
+        val ret = CompletableFuture<List<Entity>>()
+        try {
+            val start = System.currentTimeMillis()
+            val future = asyncLoader.load(argument, ids)
+            future.whenComplete { entities, error ->
+                if (error != null) {
+                    ret.completeExceptionally(loaderError(loader, ids, error))
+                } else {
+                    debugInfo?.addLoaderDebug(
+                        loader.entityClass, System.currentTimeMillis() - start, ids, entities, chunk?.index, chunk?.count)
+                    ret.complete(entities)
+                }
+            }
+            ret.whenComplete { _, error ->
+                if (error is CancellationException) {
+                    future.cancel(true)
+                }
+            }
+        } catch (t: Throwable) {
+            ret.completeExceptionally(loaderError(loader, ids, t))
+        }
+        return ret
+    }
+
+    /**
+     * Partitions the given ids by shard and loads each shard's ids on the given executor, with at most
+     * [EntityLoaderDescriptor.maxConcurrentPerShard] loads running against a shard at once.
+     */
+    private fun <ID, Entity> startShardedAsync(
+        loader: EntityLoaderDescriptor<Any, Any, ID, Entity>, shardedLoader: ShardedLoaderFunction<Any, ID, Entity>,
+        argument: Any?, ids: List<ID>, executor: Executor, chunk: Chunk?): CompletableFuture<List<Entity>> {
+        val debugInfo = JoraphDebug.getDebugInfo()
+        val deadline = Deadline.current()
+        val bulkheads = shardBulkheads.computeIfAbsent(loader) { ConcurrentHashMap() }
+
+        val futures = try {
+            shardedLoader.partitionByShard(ids).map { (shard, shardIds) ->
+                val bulkhead = bulkheads.computeIfAbsent(shard) { Bulkhead(loader.maxConcurrentPerShard) }
+                bulkhead.submit(loader.entityClass) {
+                    InterruptibleFuture.supply(executor) {
+                        withThreadContext(debugInfo, deadline) {
+                            val start = System.currentTimeMillis()
+                            val ret = shardedLoader.load(shard, argument, shardIds)
+                            debugInfo?.addLoaderDebug(
+                                loader.entityClass, System.currentTimeMillis() - start, shardIds, ret,
+                                chunk?.index, chunk?.count)
+                            ret
+                        }
+                    }
+                }
+            }
+        } catch (t: Throwable) {
+            return failedFuture(loaderError(loader, ids, t))
+        }
+
+        if (futures.isEmpty()) {
+            return CompletableFuture.completedFuture(emptyList())
+        }
+        val ret = CompletableFuture<List<Entity>>()
+        val remaining = AtomicInteger(futures.size)
+        futures.forEach { future ->
+            future.whenComplete { _, error ->
+                if (error != null) {
+                    ret.completeExceptionally(loaderError(loader, ids, error))
+                } else if (remaining.decrementAndGet() == 0) {
+                    ret.complete(concatenate(futures.map { it.join() }))
+                }
+            }
+        }
+        ret.whenComplete { _, error ->
+            if (error != null) {
+                futures.forEach { it.cancel(true) }
+            }
+        }
+        return ret
+    }
+
+    /**
+     * Runs the given block with the given debug info and [Deadline] set on the current thread.
+     */
+    private fun <T> withThreadContext(debugInfo: DebugInfo?, deadline: Deadline?, block: () -> T): T {
+        val previousDebugInfo = JoraphDebug.getDebugInfo()
+        JoraphDebug.setThreadDebugInfo(debugInfo)
+        try {
+            return Deadline.withCurrent(deadline, block)
+        } finally {
+            JoraphDebug.setThreadDebugInfo(previousDebugInfo)
+        }
+    }
+
+    /**
+     * Returns the primary key of the given loaded entity, used to hand coalesced, single flight
+     * and batched entities back to the loads that asked for them. Like the entities added to an
+     * [com.joraph.ObjectGraph] by a query, their class must have an [com.joraph.schema.EntityDescriptor].
+     */
+    @Throws(UnknownEntityDescriptorException::class)
+    internal fun primaryKeyOf(entity: Any): Any? {
+        val schema = schema
+            ?: throw IllegalStateException("A schema is required to coalesce or deduplicate loads")
+        val descriptor = schema.getEntityDescriptor(entity.javaClass)
+            ?: throw UnknownEntityDescriptorException(entity.javaClass)
+        return descriptor.primaryKey.read(entity)
+    }
+
+    /**
+     * Returns the argument to pass to the given loader from the given argument providers.
+     */
+    @Throws(MissingLoaderArgumentException::class)
+    internal fun getArgument(loader: EntityLoaderDescriptor<Any, Any, *, *>, arguments: List<Any?>): Any? {
         if (loader.requiresAdditionalArguments() && arguments.isEmpty()) {
             throw MissingLoaderArgumentException(loader)
         }
@@ -131,16 +602,22 @@ open class EntityLoaderContext {
         if (argument == null && loader.requiresAdditionalArguments()) {
             throw MissingLoaderArgumentException(loader)
         }
+        return argument
+    }
 
-        // get ids
-        val idsToLoad = ids.toMutableList()
-        return try {
-            val start = System.currentTimeMillis()
-            val ret = loader.loader.load(argument, idsToLoad)
-            JoraphDebug.addLoaderDebug(entityClass, System.currentTimeMillis() - start, idsToLoad, ret)
-            ret
-        } catch (t: Throwable) {
-            throw JoraphException("Error invoking loader: $loader with ids: ${idsToLoad.joinToString(separator = ",")}", t)
-        }
+    private fun loaderError(loader: EntityLoaderDescriptor<*, *, *, *>, ids: List<*>, t: Throwable): JoraphException {
+        val cause = (t as? CompletionException)?.cause ?: t
+        return JoraphException("Error invoking loader: $loader with ids: ${ids.joinToString(separator = ",")}", cause)
     }
+
+    private fun <T> failedFuture(t: Throwable): CompletableFuture<T> {
+        val ret = CompletableFuture<T>()
+        ret.completeExceptionally(t)
+        return ret
+    }
+
+    /**
+     * The position of a load within a chunked load, see [invokeChunked].
+     */
+    private class Chunk(val index: Int, val count: Int)
 }
@@ -4,9 +4,81 @@ class EntityLoaderDescriptor<ArgProvider, Arg, ID, Entity>(
     val argumentProviderClass: Class<ArgProvider>? = null,
     val argumentExtractor: ArgumentExtractor<ArgProvider, Arg>? = null,
     val entityClass: Class<Entity>,
-    val loader: LoaderFunction<Arg, ID, Entity>) {
+    val loader: LoaderFunction<Arg, ID, Entity>,
+    val asyncLoader: AsyncLoaderFunction<Arg, ID, Entity>? = null,
+    val suspendLoader: SuspendLoaderFunction<Arg, ID, Entity>? = null,
+    val coalescingWindowNanos: Long = 0,
+    val coalescingMaxBatchSize: Int = Int.MAX_VALUE,
+    val singleFlight: Boolean = false,
+    val optional: Boolean = false,
+    val timeoutNanos: Long = 0,
+    val hedgingPolicy: HedgingPolicy? = null,
+    val bulkhead: Bulkhead? = null,
+    val maxBatchSize: Int = Int.MAX_VALUE,
+    val maxParallelChunks: Int = DEFAULT_MAX_PARALLEL_CHUNKS,
+    val shardedLoader: ShardedLoaderFunction<Arg, ID, Entity>? = null,
+    val maxConcurrentPerShard: Int = Int.MAX_VALUE,
+    val maxConcurrency: Int? = null) {
+
+    constructor(
+        argumentProviderClass: Class<ArgProvider>? = null,
+        argumentExtractor: ArgumentExtractor<ArgProvider, Arg>? = null,
+        entityClass: Class<Entity>,
+        asyncLoader: AsyncLoaderFunction<Arg, ID, Entity>) : this(
+        argumentProviderClass = argumentProviderClass,
+        argumentExtractor = argumentExtractor,
+        entityClass = entityClass,
+        loader = asyncLoader.asLoaderFunction(),
+        asyncLoader = asyncLoader)
+
+    constructor(
+        argumentProviderClass: Class<ArgProvider>? = null,
+        argumentExtractor: ArgumentExtractor<ArgProvider, Arg>? = null,
+        entityClass: Class<Entity>,
+        suspendLoader: SuspendLoaderFunction<Arg, ID, Entity>) : this(
+        argumentProviderClass = argumentProviderClass,
+        argumentExtractor = argumentExtractor,
+        entityClass = entityClass,
+        loader = suspendLoader.asLoaderFunction(),
+        asyncLoader = suspendLoader.asAsyncLoaderFunction(),
+        suspendLoader = suspendLoader)
+
+    /**
+     * Whether or not this loader is an [AsyncLoaderFunction].
+     */
+    val isAsync: Boolean get() = asyncLoader != null
+
+    /**
+     * Whether or not this loader is a [SuspendLoaderFunction].
+     */
+    val isSuspending: Boolean get() = suspendLoader != null
+
+    /**
+     * Whether or not this loader is a [ShardedLoaderFunction].
+     */
+    val isSharded: Boolean get() = shardedLoader != null
+
+    /**
+     * Whether or not concurrent loads with the same argument are coalesced into a single
+     * call to the loader, see [EntityLoaderDescriptorBuilder.withCoalescing].
+     */
+    val isCoalescing: Boolean get() = coalescingWindowNanos > 0
+
+    /**
+     * Whether or not loads of more than [maxBatchSize] ids are split into chunks, see
+     * [EntityLoaderDescriptorBuilder.withMaxBatchSize].
+     */
+    val isChunked: Boolean get() = maxBatchSize < Int.MAX_VALUE
 
     fun requiresAdditionalArguments(): Boolean {
         return argumentProviderClass != null && argumentExtractor != null
     }
+
+    companion object {
+
+        /**
+         * How many chunks of a load are run at once by default, see [EntityLoaderDescriptorBuilder.withMaxBatchSize].
+         */
+        const val DEFAULT_MAX_PARALLEL_CHUNKS = 4
+    }
 }
@@ -1,5 +1,8 @@
 package com.joraph.loader
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
 typealias ArgumentExtractor<ArgProvider, Arg> = ((ArgProvider) -> Arg?)
 
 class EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity>(
@@ -9,14 +12,155 @@ class EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity>(
     private var argumentProviderClass: Class<ArgProvider>? = null
     private var argumentExtractor: ArgumentExtractor<ArgProvider, Arg>? = null
     private var loader: LoaderFunction<Arg, ID, Entity>? = null
+    private var asyncLoader: AsyncLoaderFunction<Arg, ID, Entity>? = null
+    private var suspendLoader: SuspendLoaderFunction<Arg, ID, Entity>? = null
+    private var shardedLoader: ShardedLoaderFunction<Arg, ID, Entity>? = null
+    private var maxConcurrentPerShard: Int = Int.MAX_VALUE
+
+    private var coalescingWindowNanos: Long = 0
+    private var coalescingMaxBatchSize: Int = Int.MAX_VALUE
+    private var singleFlight: Boolean = false
+    private var optional: Boolean = false
+    private var timeoutNanos: Long = 0
+    private var hedgingPolicy: HedgingPolicy? = null
+    private var bulkhead: Bulkhead? = null
+    private var maxBatchSize: Int = Int.MAX_VALUE
+    private var maxParallelChunks: Int = EntityLoaderDescriptor.DEFAULT_MAX_PARALLEL_CHUNKS
+    private var maxConcurrency: Int? = null
 
-    @Suppress("UNCHECKED_CAST")
     fun add(): EntityLoaderContext {
-        return if (argumentProviderClass != null) {
-            context.withLoader(argumentProviderClass!!, argumentExtractor!!, entityClass, loader!!)
-        } else {
-            context.withLoader(entityClass, (loader as LoaderFunction<Any, ID, Entity>?)!!)
-        }
+        val asyncLoader = this.asyncLoader ?: suspendLoader?.asAsyncLoaderFunction()
+        val loader = this.loader
+            ?: shardedLoader?.asLoaderFunction()
+            ?: suspendLoader?.asLoaderFunction()
+            ?: asyncLoader?.asLoaderFunction()
+            ?: throw IllegalStateException("loader is null")
+
+        return context.withLoader(entityClass, EntityLoaderDescriptor(
+            argumentProviderClass = argumentProviderClass,
+            argumentExtractor = argumentExtractor,
+            entityClass = entityClass,
+            loader = loader,
+            asyncLoader = asyncLoader,
+            suspendLoader = suspendLoader,
+            coalescingWindowNanos = coalescingWindowNanos,
+            coalescingMaxBatchSize = coalescingMaxBatchSize,
+            singleFlight = singleFlight,
+            optional = optional,
+            timeoutNanos = timeoutNanos,
+            hedgingPolicy = hedgingPolicy,
+            bulkhead = bulkhead,
+            maxBatchSize = maxBatchSize,
+            maxParallelChunks = maxParallelChunks,
+            shardedLoader = shardedLoader,
+            maxConcurrentPerShard = maxConcurrentPerShard,
+            maxConcurrency = maxConcurrency))
+    }
+
+    /**
+     * Coalesces concurrent loads (from any number of queries) that have the same argument into a
+     * single call to the loader. Ids are collected for up to [window] after the first one arrives,
+     * or until [maxBatchSize] ids have been collected, and the loaded entities are handed back to
+     * each caller by their primary key. Loaders using this must return entities whose primary key
+     * is equal to the id that they were loaded by.
+     */
+    @JvmOverloads
+    fun withCoalescing(window: Long, unit: TimeUnit, maxBatchSize: Int = Int.MAX_VALUE): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        require(window > 0) { "window must be positive" }
+        require(maxBatchSize > 0) { "maxBatchSize must be positive" }
+        coalescingWindowNanos = unit.toNanos(window)
+        coalescingMaxBatchSize = maxBatchSize
+        return this
+    }
+
+    /**
+     * Deduplicates loads that are in flight at the same time: a load of an id that is already being
+     * loaded (with the same argument) by another query waits for that load instead of loading it
+     * again. Loaders using this must return entities whose primary key is equal to the id that they
+     * were loaded by. Every load pays for tracking its ids while they're in flight, whether or not
+     * another load overlaps with it, so this is only worth it for loaders that often see the same ids
+     * at once.
+     */
+    fun withSingleFlight(): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        singleFlight = true
+        return this
+    }
+
+    /**
+     * Makes the loader optional: when it fails or times out the [com.joraph.Query] doesn't fail, the
+     * entities it would have loaded are left out of the [com.joraph.ObjectGraph] and the failure is
+     * reported by [com.joraph.ObjectGraph.errors].
+     */
+    fun optional(): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        optional = true
+        return this
+    }
+
+    /**
+     * Fails loads that take longer than the given timeout with a [LoaderTimeoutException],
+     * cancelling them.
+     */
+    fun withTimeout(timeout: Long, unit: TimeUnit): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        require(timeout > 0) { "timeout must be positive" }
+        timeoutNanos = unit.toNanos(timeout)
+        return this
+    }
+
+    /**
+     * Hedges slow loads according to the given [HedgingPolicy]. Loaders using this must be
+     * safe to call more than once with the same ids.
+     */
+    fun withHedging(policy: HedgingPolicy): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        hedgingPolicy = policy
+        return this
+    }
+
+    /**
+     * Runs the loader's loads in the given [Bulkhead], so that they can't starve other loaders.
+     */
+    fun withBulkhead(bulkhead: Bulkhead): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        this.bulkhead = bulkhead
+        return this
+    }
+
+    /**
+     * Caps the number of the loader's blocking loads running at once when they're run on virtual
+     * threads (see [com.joraph.ExecutorMode.VIRTUAL_THREADS]), instead of the context's
+     * [com.joraph.JoraphContext.parallelExecutorCount]. On platform threads the pool is the cap,
+     * use [withBulkhead] to limit a loader below it.
+     */
+    fun withMaxConcurrency(maxConcurrency: Int): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        require(maxConcurrency > 0) { "maxConcurrency must be positive" }
+        this.maxConcurrency = maxConcurrency
+        return this
+    }
+
+    /**
+     * Caps the number of loads running at once with the given, possibly adaptive, [ConcurrencyLimit].
+     * Loads beyond the limit wait in a queue of up to [maxQueued] loads and are shed with a
+     * [BulkheadFullException] when it's full.
+     */
+    @JvmOverloads
+    fun withConcurrencyLimit(limit: ConcurrencyLimit, maxQueued: Int = Int.MAX_VALUE): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        return withBulkhead(Bulkhead(limit, maxQueued))
+    }
+
+    /**
+     * Splits loads of more than [maxBatchSize] ids into chunks of at most that many ids, running up to
+     * [maxParallelChunks] of them at once and merging their results in order. A failed chunk fails
+     * the whole load and cancels the other chunks. Loads made with the blocking
+     * [EntityLoaderContext.load] have no executor to run chunks on, so they run them one after
+     * another on the calling thread regardless of [maxParallelChunks].
+     */
+    @JvmOverloads
+    fun withMaxBatchSize(
+        maxBatchSize: Int,
+        maxParallelChunks: Int = EntityLoaderDescriptor.DEFAULT_MAX_PARALLEL_CHUNKS): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity> {
+        require(maxBatchSize > 0) { "maxBatchSize must be positive" }
+        require(maxParallelChunks > 0) { "maxParallelChunks must be positive" }
+        this.maxBatchSize = maxBatchSize
+        this.maxParallelChunks = maxParallelChunks
+        return this
     }
 
     @Suppress("UNCHECKED_CAST")
@@ -40,13 +184,55 @@ class EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity>(
     fun <ID2, Entity2> withLoaderFunction(func: LoaderFunction<Arg, ID2, Entity2>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
         val ret = this as EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2>
         ret.loader = func
+        ret.asyncLoader = null
+        ret.suspendLoader = null
+        ret.shardedLoader = null
+        return ret
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun <ID2, Entity2> withAsyncLoaderFunction(func: AsyncLoaderFunction<Arg, ID2, Entity2>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        val ret = this as EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2>
+        ret.asyncLoader = func
+        ret.loader = null
+        ret.suspendLoader = null
+        ret.shardedLoader = null
+        return ret
+    }
+
+    fun <ID2, Entity2> withAsyncLoader(func: (arg: Arg?, ids: List<ID2>) -> CompletableFuture<out Iterable<Entity2>>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        return withAsyncLoaderFunction(AsyncLoaderFunction { arguments, ids -> func(arguments, ids).thenApply { it.toMutableList() } })
+    }
+
+    fun <ID2, Entity2> withAsyncLoader(func: (ids: List<ID2>) -> CompletableFuture<out Iterable<Entity2>>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        return withAsyncLoaderFunction(AsyncLoaderFunction { _, ids -> func(ids).thenApply { it.toMutableList() } })
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun <ID2, Entity2> withSuspendLoaderFunction(func: SuspendLoaderFunction<Arg, ID2, Entity2>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        val ret = this as EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2>
+        ret.suspendLoader = func
+        ret.loader = null
+        ret.asyncLoader = null
+        ret.shardedLoader = null
         return ret
     }
 
+    fun <ID2, Entity2> withSuspendLoader(func: suspend (arg: Arg?, ids: List<ID2>) -> Iterable<Entity2>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        return withSuspendLoaderFunction(suspendLoaderFunction { arguments, ids -> func(arguments, ids).toMutableList() })
+    }
+
+    fun <ID2, Entity2> withSuspendLoader(func: suspend (ids: List<ID2>) -> Iterable<Entity2>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        return withSuspendLoaderFunction(suspendLoaderFunction { _, ids -> func(ids).toMutableList() })
+    }
+
     @Suppress("UNCHECKED_CAST")
     fun <ID2, Entity2> withLoader(func: (arg: Arg?, ids: List<ID2>) -> Iterable<Entity2>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
         val ret = this as EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2>
         ret.loader = LoaderFunction { arguments, ids -> func(arguments, ids).toMutableList() }
+        ret.asyncLoader = null
+        ret.suspendLoader = null
+        ret.shardedLoader = null
         return ret
     }
 
@@ -54,9 +240,36 @@ class EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID, Entity>(
     fun <ID2, Entity2> withLoader(func: (ids: List<ID2>) -> Iterable<Entity2>): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
         val ret = this as EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2>
         ret.loader = LoaderFunction { _, ids -> func(ids).toMutableList() }
+        ret.asyncLoader = null
+        ret.suspendLoader = null
+        ret.shardedLoader = null
         return ret
     }
 
-}
-
+    /**
+     * Uses the given [ShardedLoaderFunction]: each load is partitioned by shard and the loads of the
+     * shards run concurrently, with at most [maxConcurrentPerShard] loads running against any one
+     * shard at once. The entities loaded from each shard are merged without being copied.
+     */
+    @JvmOverloads
+    @Suppress("UNCHECKED_CAST")
+    fun <ID2, Entity2> withShardedLoaderFunction(
+        func: ShardedLoaderFunction<in Arg, ID2, Entity2>, maxConcurrentPerShard: Int = Int.MAX_VALUE): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        require(maxConcurrentPerShard > 0) { "maxConcurrentPerShard must be positive" }
+        val ret = this as EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2>
+        ret.shardedLoader = func as ShardedLoaderFunction<Arg, ID2, Entity2>
+        ret.maxConcurrentPerShard = maxConcurrentPerShard
+        ret.loader = null
+        ret.asyncLoader = null
+        ret.suspendLoader = null
+        return ret
+    }
 
+    fun <ID2, Entity2> withShardedLoader(
+        shardOf: (id: ID2) -> Int, func: (shard: Int, ids: List<ID2>) -> Iterable<Entity2>,
+        maxConcurrentPerShard: Int = Int.MAX_VALUE): EntityLoaderDescriptorBuilder<ArgProvider, Arg, ID2, Entity2> {
+        return withShardedLoaderFunction(
+            shardedLoaderFunction(shardOf) { shard, _, ids -> func(shard, ids).toMutableList() },
+            maxConcurrentPerShard)
+    }
+}
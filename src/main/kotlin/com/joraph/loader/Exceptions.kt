@@ -6,5 +6,12 @@ class MissingLoaderArgumentException(d: EntityLoaderDescriptor<*, *, *, *>) : Jo
     "Missing an argument of type ${d.argumentProviderClass?.name ?: "Unknown"}"
             + " for loader configured for entity class ${d.entityClass.name ?: "Unknown"}")
 
+class LoaderTimeoutException(entityClass: Class<*>, timeoutMillis: Long) :
+    JoraphException("The loader for entity class ${entityClass.name} timed out after ${timeoutMillis}ms")
+
+class BulkheadFullException(entityClass: Class<*>, maxConcurrent: Int, maxQueued: Int) :
+    JoraphException("The bulkhead for entity class ${entityClass.name} is full"
+            + " ($maxConcurrent running, $maxQueued queued)")
+
 class UnconfiguredLoaderException(missingLoaderForEntityClass: Class<*>) :
     JoraphException("Missing an EntityLoader for entity class ${missingLoaderForEntityClass.name}")
@@ -0,0 +1,134 @@
+package com.joraph.loader
+
+import com.joraph.JoraphScheduler
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Applies a [HedgingPolicy] to the loads made through a single loader, tracking the
+ * loader's recent latencies and how many hedges have been sent.
+ */
+internal class Hedger(
+    private val policy: HedgingPolicy) {
+
+    private val loads = AtomicLong()
+    private val hedges = AtomicLong()
+    private val latencies = LongArray(SAMPLES)
+    private var sampleCount = 0
+    private var percentileNanos = -1L
+
+    /**
+     * Makes a load using the given function, hedging it if it's slow. The load only fails once every
+     * attempt that was started has failed, and the latency of every attempt that succeeds is recorded
+     * from its own start.
+     */
+    fun <T> load(call: () -> CompletableFuture<T>): CompletableFuture<T> {
+        loads.incrementAndGet()
+        val ret = CompletableFuture<T>()
+        // guarded by attempts, started is counted before an attempt is made so that a failure can't
+        // fail the load while another attempt is still being made
+        val attempts = mutableListOf<CompletableFuture<T>>()
+        var started = 1
+        var failures = 0
+
+        fun attempt() {
+            val start = System.nanoTime()
+            val future = try {
+                call()
+            } catch (t: Throwable) {
+                val failed = CompletableFuture<T>()
+                failed.completeExceptionally(t)
+                failed
+            }
+            // the load may have completed while this attempt was being made, after the others were cancelled
+            val lost = synchronized(attempts) {
+                attempts.add(future)
+                ret.isDone
+            }
+            if (lost) {
+                future.cancel(true)
+            }
+            future.whenComplete { value, error ->
+                if (error == null) {
+                    record(System.nanoTime() - start)
+                    ret.complete(value)
+                    return@whenComplete
+                }
+                val failed = synchronized(attempts) { ++failures == started }
+                if (failed) {
+                    ret.completeExceptionally(error)
+                }
+            }
+        }
+
+        attempt()
+        val delay = delayNanos()
+        if (delay >= 0 && !ret.isDone) {
+            val timer = JoraphScheduler.schedule(delay, TimeUnit.NANOSECONDS) {
+                // don't hedge loads that are done or have already failed
+                val hedge = synchronized(attempts) {
+                    if (!ret.isDone && failures == 0 && tryAcquireHedge()) {
+                        started++
+                        true
+                    } else {
+                        false
+                    }
+                }
+                if (hedge) {
+                    attempt()
+                }
+            }
+            ret.whenComplete { _, _ -> timer.cancel(false) }
+        }
+
+        // cancel the losers, or everything if the load itself is cancelled
+        ret.whenComplete { _, _ ->
+            synchronized(attempts) { attempts.toList() }
+                .forEach { it.cancel(true) }
+        }
+        return ret
+    }
+
+    private fun tryAcquireHedge(): Boolean {
+        while (true) {
+            val sent = hedges.get()
+            if ((sent + 1) * 100.0 > loads.get() * policy.maxExtraLoadPercent) {
+                return false
+            }
+            if (hedges.compareAndSet(sent, sent + 1)) {
+                return true
+            }
+        }
+    }
+
+    /**
+     * Returns the delay after which to hedge, or -1 if there isn't one yet.
+     */
+    private fun delayNanos(): Long {
+        if (!policy.isAdaptive) {
+            return policy.delayNanos
+        }
+        return synchronized(latencies) { percentileNanos }
+    }
+
+    private fun record(latencyNanos: Long) {
+        if (!policy.isAdaptive) {
+            return
+        }
+        synchronized(latencies) {
+            latencies[sampleCount % SAMPLES] = latencyNanos
+            sampleCount++
+            if (sampleCount >= policy.minSamples && (percentileNanos < 0 || sampleCount % RECOMPUTE_EVERY == 0)) {
+                val sorted = latencies.copyOf(minOf(sampleCount, SAMPLES))
+                sorted.sort()
+                percentileNanos = sorted[((sorted.size - 1) * policy.percentile).toInt()]
+            }
+        }
+    }
+
+    companion object {
+        private const val SAMPLES = 256
+        private const val RECOMPUTE_EVERY = 16
+    }
+}
@@ -0,0 +1,53 @@
+package com.joraph.loader
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Configures hedged requests for a loader: when a load hasn't completed after a delay a duplicate
+ * load is started, whichever completes first is used and the other is cancelled. The delay is
+ * either fixed, or the given percentile of the loader's recently observed latencies. Hedges are
+ * capped at [maxExtraLoadPercent] percent of the loads made through the loader.
+ */
+class HedgingPolicy private constructor(
+    val delayNanos: Long,
+    val percentile: Double,
+    val maxExtraLoadPercent: Double,
+    val minSamples: Int) {
+
+    /**
+     * Whether or not the delay is computed from observed latencies rather than fixed.
+     */
+    val isAdaptive: Boolean get() = percentile > 0
+
+    override fun toString(): String {
+        val delay = if (isAdaptive) "p${percentile * 100}" else "${TimeUnit.NANOSECONDS.toMillis(delayNanos)}ms"
+        return "HedgingPolicy(delay=$delay, maxExtraLoadPercent=$maxExtraLoadPercent)"
+    }
+
+    companion object {
+
+        /**
+         * Hedges loads that haven't completed after the given delay.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun fixed(delay: Long, unit: TimeUnit, maxExtraLoadPercent: Double = 5.0): HedgingPolicy {
+            require(delay > 0) { "delay must be positive" }
+            require(maxExtraLoadPercent > 0) { "maxExtraLoadPercent must be positive" }
+            return HedgingPolicy(unit.toNanos(delay), 0.0, maxExtraLoadPercent, 0)
+        }
+
+        /**
+         * Hedges loads that are slower than the given percentile (0.95 for p95) of the loader's
+         * recent latencies. Nothing is hedged until [minSamples] latencies have been observed.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun percentile(percentile: Double = 0.95, maxExtraLoadPercent: Double = 5.0, minSamples: Int = 20): HedgingPolicy {
+            require(percentile > 0 && percentile < 1) { "percentile must be between 0 and 1" }
+            require(maxExtraLoadPercent > 0) { "maxExtraLoadPercent must be positive" }
+            require(minSamples > 0) { "minSamples must be positive" }
+            return HedgingPolicy(0, percentile, maxExtraLoadPercent, minSamples)
+        }
+    }
+}
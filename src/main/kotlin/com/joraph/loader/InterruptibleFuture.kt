@@ -0,0 +1,66 @@
+package com.joraph.loader
+
+import com.joraph.CancellableTask
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+
+/**
+ * A [CompletableFuture] for a task run on an [Executor] that interrupts the thread running the
+ * task when it is cancelled with `mayInterruptIfRunning`, which [CompletableFuture.supplyAsync]
+ * doesn't do. Tasks that are cancelled before they start are never run.
+ */
+internal class InterruptibleFuture<T> private constructor() : CompletableFuture<T>() {
+
+    private var runner: Thread? = null
+
+    override fun cancel(mayInterruptIfRunning: Boolean): Boolean {
+        val cancelled = super.cancel(mayInterruptIfRunning)
+        if (cancelled && mayInterruptIfRunning) {
+            synchronized(this) {
+                runner?.interrupt()
+            }
+        }
+        return cancelled
+    }
+
+    private fun run(task: () -> T) {
+        if (isDone) {
+            return
+        }
+        synchronized(this) {
+            runner = Thread.currentThread()
+        }
+        try {
+            complete(task())
+        } catch (t: Throwable) {
+            completeExceptionally(t)
+        } finally {
+            synchronized(this) {
+                runner = null
+            }
+            // don't leak an interrupt meant for this task to the next one run by the thread
+            if (isCancelled) {
+                Thread.interrupted()
+            }
+        }
+    }
+
+    companion object {
+
+        /**
+         * Runs the given task on the given [Executor].
+         */
+        fun <T> supply(executor: Executor, task: () -> T): CompletableFuture<T> {
+            val ret = InterruptibleFuture<T>()
+            try {
+                executor.execute(object : CancellableTask {
+                    override val isDone: Boolean get() = ret.isDone
+                    override fun run() = ret.run(task)
+                })
+            } catch (t: Throwable) {
+                ret.completeExceptionally(t)
+            }
+            return ret
+        }
+    }
+}
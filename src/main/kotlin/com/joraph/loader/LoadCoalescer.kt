@@ -0,0 +1,145 @@
+package com.joraph.loader
+
+import com.joraph.Deadline
+import com.joraph.JoraphScheduler
+import com.joraph.debug.DebugInfo
+import com.joraph.debug.JoraphDebug
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects the ids of concurrent loads made through a single loader into batches, one per argument,
+ * and invokes the loader once per batch. A batch is dispatched [windowNanos] after it was started
+ * or as soon as it holds [maxBatchSize] ids, whichever comes first, and a load of more ids than fit
+ * is spread over as many batches as it takes. The loaded entities are handed back to each load by
+ * matching their primary key, as given by [idOf], with the ids it asked for. Each batch is
+ * dispatched with the debug info of the load that started it and the latest deadline of the loads
+ * in it, rather than those of whichever thread happens to dispatch it.
+ */
+internal class LoadCoalescer(
+    private val windowNanos: Long,
+    private val maxBatchSize: Int,
+    private val idOf: (Any) -> Any?) {
+
+    private val batches: MutableMap<Any?, Batch> = HashMap()
+
+    private class Batch(
+        val argument: Any?,
+        val dispatch: (Any?, List<Any?>) -> CompletableFuture<out List<Any?>>,
+        val debugInfo: DebugInfo?,
+        var deadline: Deadline?) {
+
+        val ids: MutableSet<Any?> = LinkedHashSet()
+        val waiters: MutableList<Pair<List<Any?>, CompletableFuture<List<Any?>>>> = mutableListOf()
+    }
+
+    /**
+     * Adds the given ids to the batch for the given argument, starting one if there isn't one waiting
+     * to be dispatched, and more if they don't all fit. The given dispatch function is used to invoke
+     * the loader for the batches that this starts.
+     */
+    fun load(
+        argument: Any?,
+        ids: List<Any?>,
+        dispatch: (Any?, List<Any?>) -> CompletableFuture<out List<Any?>>): CompletableFuture<List<Any?>> {
+        if (ids.isEmpty()) {
+            return CompletableFuture.completedFuture(emptyList())
+        }
+        val debugInfo = JoraphDebug.getDebugInfo()
+        val deadline = Deadline.current()
+        val parts = ArrayList<CompletableFuture<List<Any?>>>(1)
+        val full = ArrayList<Batch>(0)
+        synchronized(batches) {
+            var part = ArrayList<Any?>()
+            var batch = join(argument, dispatch, debugInfo, deadline)
+            for (id in ids) {
+                if (batch.ids.size >= maxBatchSize && !batch.ids.contains(id)) {
+                    batch.waiters.add(part to CompletableFuture<List<Any?>>().also { parts.add(it) })
+                    batches.remove(argument)
+                    full.add(batch)
+                    part = ArrayList()
+                    batch = join(argument, dispatch, debugInfo, deadline)
+                }
+                batch.ids.add(id)
+                part.add(id)
+            }
+            batch.waiters.add(part to CompletableFuture<List<Any?>>().also { parts.add(it) })
+            if (batch.ids.size >= maxBatchSize) {
+                batches.remove(argument)
+                full.add(batch)
+            }
+        }
+        full.forEach { dispatchBatch(it) }
+
+        if (parts.size == 1) {
+            return parts[0]
+        }
+        return CompletableFuture.allOf(*parts.toTypedArray())
+            .thenApply { parts.flatMap { it.join() } }
+    }
+
+    /**
+     * Returns the batch waiting to be dispatched for the given argument, starting one if there isn't
+     * one. Called while holding the lock on [batches].
+     */
+    private fun join(
+        argument: Any?,
+        dispatch: (Any?, List<Any?>) -> CompletableFuture<out List<Any?>>,
+        debugInfo: DebugInfo?,
+        deadline: Deadline?): Batch {
+        val existing = batches[argument]
+        if (existing != null) {
+            existing.deadline = Deadline.latest(existing.deadline, deadline)
+            return existing
+        }
+        val batch = Batch(argument, dispatch, debugInfo, deadline)
+        batches[argument] = batch
+        JoraphScheduler.schedule(windowNanos, TimeUnit.NANOSECONDS) { flush(batch) }
+        return batch
+    }
+
+    private fun flush(batch: Batch) {
+        synchronized(batches) {
+            // already dispatched because it filled up
+            if (batches[batch.argument] !== batch) {
+                return
+            }
+            batches.remove(batch.argument)
+        }
+        dispatchBatch(batch)
+    }
+
+    private fun dispatchBatch(batch: Batch) {
+        val previousDebugInfo = JoraphDebug.getDebugInfo()
+        JoraphDebug.setThreadDebugInfo(batch.debugInfo)
+        val future = try {
+            Deadline.withCurrent(batch.deadline) { batch.dispatch(batch.argument, batch.ids.toList()) }
+        } catch (t: Throwable) {
+            val ret = CompletableFuture<List<Any?>>()
+            ret.completeExceptionally(t)
+            ret
+        } finally {
+            JoraphDebug.setThreadDebugInfo(previousDebugInfo)
+        }
+
+        future.whenComplete { entities, error ->
+            try {
+                if (error != null) {
+                    batch.waiters.forEach { it.second.completeExceptionally(error) }
+                    return@whenComplete
+                }
+                val entitiesById = HashMap<Any?, Any>()
+                for (entity in entities) {
+                    if (entity != null) {
+                        entitiesById[idOf(entity)] = entity
+                    }
+                }
+                for ((ids, waiter) in batch.waiters) {
+                    waiter.complete(ids.mapNotNull { entitiesById[it] })
+                }
+            } catch (t: Throwable) {
+                batch.waiters.forEach { it.second.completeExceptionally(t) }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.joraph.loader
+
+/**
+ * A [LoaderFunction] for entities that are spread over a number of shards. [shardOf] routes each id
+ * to the shard that holds it, and [load] loads the ids of a single shard. Joraph partitions each batch
+ * of ids by shard and runs the loads of the shards concurrently, see
+ * [EntityLoaderDescriptorBuilder.withShardedLoaderFunction].
+ */
+interface ShardedLoaderFunction<Arg, ID, Entity> {
+
+    /**
+     * Returns the shard that holds the entity with the given id.
+     */
+    fun shardOf(id: ID): Int
+
+    /**
+     * Loads the entities with the given ids, all of which are held by the given shard.
+     */
+    fun load(shard: Int, argument: Arg?, ids: @JvmSuppressWildcards List<ID>): List<Entity>
+}
+
+/**
+ * Creates a [ShardedLoaderFunction] from the given functions.
+ */
+fun <Arg, ID, Entity> shardedLoaderFunction(
+    shardOf: (id: ID) -> Int,
+    load: (shard: Int, argument: Arg?, ids: List<ID>) -> List<Entity>): ShardedLoaderFunction<Arg, ID, Entity> {
+    return object : ShardedLoaderFunction<Arg, ID, Entity> {
+        override fun shardOf(id: ID): Int = shardOf(id)
+        override fun load(shard: Int, argument: Arg?, ids: List<ID>): List<Entity> = load(shard, argument, ids)
+    }
+}
+
+/**
+ * Adapts the [ShardedLoaderFunction] to a [LoaderFunction] that loads the shards one after another.
+ */
+fun <Arg, ID, Entity> ShardedLoaderFunction<Arg, ID, Entity>.asLoaderFunction(): LoaderFunction<Arg, ID, Entity> {
+    return LoaderFunction { argument, ids ->
+        concatenate(partitionByShard(ids).map { (shard, shardIds) -> load(shard, argument, shardIds) })
+    }
+}
+
+/**
+ * Groups the given ids by the shard that holds them, keeping their order within each shard.
+ */
+internal fun <ID> ShardedLoaderFunction<*, ID, *>.partitionByShard(ids: List<ID>): Map<Int, List<ID>> {
+    val ret = LinkedHashMap<Int, MutableList<ID>>()
+    for (id in ids) {
+        ret.getOrPut(shardOf(id)) { ArrayList() }.add(id)
+    }
+    return ret
+}
+
+/**
+ * Returns a read-only view of the given lists one after another, without copying them.
+ */
+internal fun <T> concatenate(lists: List<List<T>>): List<T> {
+    if (lists.size == 1) {
+        return lists[0]
+    }
+    val offsets = IntArray(lists.size + 1)
+    for (i in lists.indices) {
+        offsets[i + 1] = offsets[i] + lists[i].size
+    }
+    return object : AbstractList<T>() {
+        override val size: Int get() = offsets[lists.size]
+
+        override fun get(index: Int): T {
+            if (index < 0 || index >= size) {
+                throw IndexOutOfBoundsException("Index: $index, Size: $size")
+            }
+            var list = offsets.binarySearch(index)
+            list = if (list >= 0) list else -list - 2
+            // skip over empty lists starting at the same offset
+            while (offsets[list + 1] == index && offsets[list] == index) {
+                list++
+            }
+            return lists[list][index - offsets[list]]
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.joraph.loader
+
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Tracks the ids that are being loaded, keyed by entity class, loader argument and id, so that
+ * concurrent loads of the same entity share a single fetch. A load only fetches the ids that
+ * nobody else is already fetching and joins the in-flight fetches for the rest. Each load registers
+ * one [Flight] under every id it fetches. Entities fetched for others are matched to the ids they
+ * were loaded by using their primary key, as given by [idOf], which is only done for fetches that
+ * others joined. A fetch is cancelled once every load waiting on it has been cancelled.
+ *
+ * Ids are registered and unregistered under the lock that [inFlight] holds for their entity class
+ * and argument, so a map of in-flight ids is only dropped when no load is adding to it. That costs
+ * every load one locked update of [inFlight] to start and one to finish, plus a [HashMap] insert and
+ * removal per id, whether or not any other load overlaps with it.
+ */
+internal class SingleFlight(
+    private val idOf: (Any) -> Any?) {
+
+    private data class Key(val entityClass: Class<*>, val argument: Any?)
+
+    private val inFlight: ConcurrentHashMap<Key, MutableMap<Any, Flight>> = ConcurrentHashMap()
+
+    /**
+     * Loads the given ids, using the given fetch function for any that aren't already in flight.
+     */
+    fun load(
+        entityClass: Class<*>,
+        argument: Any?,
+        ids: List<Any?>,
+        fetch: (List<Any?>) -> CompletableFuture<out List<Any?>>): CompletableFuture<List<Any?>> {
+
+        val key = Key(entityClass, argument)
+        val flight = Flight()
+        val owned = ArrayList<Any?>(ids.size)
+        var joined: MutableMap<Flight, MutableList<Any?>>? = null
+        inFlight.compute(key) { _, existing ->
+            val flights = existing ?: HashMap()
+            for (id in ids) {
+                val idKey = id ?: NULL_ID
+                val other = flights[idKey]
+                if (other === flight) {
+                    continue
+                }
+                if (other == null) {
+                    flights[idKey] = flight
+                    owned.add(id)
+                    continue
+                }
+                val waitingOn = joined?.get(other)
+                if (waitingOn != null) {
+                    waitingOn.add(id)
+                } else if (other.attach()) {
+                    joined = (joined ?: IdentityHashMap()).also { it[other] = mutableListOf(id) }
+                } else {
+                    // the fetch was abandoned by everyone waiting on it, so this load takes the id over
+                    flights[idKey] = flight
+                    owned.add(id)
+                }
+            }
+            if (flights.isEmpty()) null else flights
+        }
+
+        val fetched: CompletableFuture<List<Any?>> = if (owned.isEmpty()) {
+            CompletableFuture.completedFuture(emptyList())
+        } else {
+            flight.start(key, owned, fetch)
+        }
+
+        val waitingOn = joined
+        val ret: CompletableFuture<List<Any?>> = if (waitingOn == null) {
+            fetched.thenApply { it }
+        } else {
+            val futures = waitingOn.map { (other, otherIds) -> other.result.thenApply { other.get(otherIds) } }
+            fetched.thenCombine(CompletableFuture.allOf(*futures.toTypedArray())) { entities, _ ->
+                entities + futures.flatMap { it.join() }
+            }
+        }
+        ret.whenComplete { _, error ->
+            if (error is CancellationException) {
+                if (owned.isNotEmpty()) {
+                    flight.detach()
+                }
+                waitingOn?.keys?.forEach { it.detach() }
+            }
+        }
+        return ret
+    }
+
+    /**
+     * The fetch of one load's ids, shared with the loads that join it.
+     */
+    private inner class Flight {
+
+        val result = CompletableFuture<List<Any?>>()
+
+        // guarded by this, the load that started the fetch is the first waiter
+        private var waiters = 1
+        private var abandoned = false
+        private var fetch: CompletableFuture<*>? = null
+
+        /**
+         * Only built for fetches that other loads joined.
+         */
+        private val entitiesById: Map<Any?, Any> by lazy {
+            val ret = HashMap<Any?, Any>()
+            for (entity in result.join()) {
+                if (entity != null) {
+                    ret[idOf(entity)] = entity
+                }
+            }
+            ret
+        }
+
+        fun start(
+            key: Key,
+            ids: List<Any?>,
+            fetch: (List<Any?>) -> CompletableFuture<out List<Any?>>): CompletableFuture<List<Any?>> {
+
+            val future = try {
+                fetch(Collections.unmodifiableList(ids))
+            } catch (t: Throwable) {
+                val ret = CompletableFuture<List<Any?>>()
+                ret.completeExceptionally(t)
+                ret
+            }
+            synchronized(this) { this.fetch = future }
+
+            future.whenComplete { entities, error ->
+                inFlight.computeIfPresent(key) { _, flights ->
+                    ids.forEach { flights.remove(it ?: NULL_ID, this) }
+                    if (flights.isEmpty()) null else flights
+                }
+                if (error != null) {
+                    result.completeExceptionally(error)
+                } else {
+                    @Suppress("UNCHECKED_CAST")
+                    result.complete(entities as List<Any?>)
+                }
+            }
+            return result
+        }
+
+        /**
+         * Adds a waiter, returns false if the fetch has already been abandoned.
+         */
+        fun attach(): Boolean = synchronized(this) {
+            if (abandoned) {
+                return false
+            }
+            waiters++
+            true
+        }
+
+        /**
+         * Removes a waiter, cancelling the fetch if it was the last one.
+         */
+        fun detach() {
+            val toCancel = synchronized(this) {
+                if (--waiters > 0 || result.isDone) {
+                    return
+                }
+                abandoned = true
+                fetch
+            }
+            toCancel?.cancel(true)
+        }
+
+        fun get(ids: List<Any?>): List<Any> = ids.mapNotNull { entitiesById[it] }
+    }
+
+    companion object {
+        private val NULL_ID = Any()
+    }
+}
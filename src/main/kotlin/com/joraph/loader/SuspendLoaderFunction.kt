@@ -0,0 +1,55 @@
+package com.joraph.loader
+
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.future.future
+import kotlinx.coroutines.runBlocking
+
+/**
+ * The coroutine counterpart of [LoaderFunction]. [SuspendLoaderFunction] assumes a
+ * multi-get pattern by primary key. When a [com.joraph.Query] is executed with
+ * [com.joraph.JoraphContext.executeSuspending] each load is started as a child
+ * coroutine of the caller.
+ */
+interface SuspendLoaderFunction<Arg, ID, Entity> {
+    suspend fun load(argument: Arg?, ids: List<ID>): List<Entity>
+}
+
+/**
+ * Adapts the [SuspendLoaderFunction] to an [AsyncLoaderFunction] whose loads are started
+ * as coroutines in the given [CoroutineScope], with the given additional [CoroutineContext].
+ * Loads started in the [GlobalScope] are dispatched on [Dispatchers.Default] unless the
+ * context has a dispatcher, so that they never run on the thread that started them.
+ */
+@JvmOverloads
+fun <Arg, ID, Entity> SuspendLoaderFunction<Arg, ID, Entity>.asAsyncLoaderFunction(
+    scope: CoroutineScope = GlobalScope,
+    context: CoroutineContext = EmptyCoroutineContext): AsyncLoaderFunction<Arg, ID, Entity> {
+    return AsyncLoaderFunction { argument, ids ->
+        if (scope === GlobalScope) {
+            scope.future(Dispatchers.Default + context) { load(argument, ids) }
+        } else {
+            scope.future(context) { load(argument, ids) }
+        }
+    }
+}
+
+/**
+ * Adapts the [SuspendLoaderFunction] to a [LoaderFunction] that blocks until the load completes.
+ */
+fun <Arg, ID, Entity> SuspendLoaderFunction<Arg, ID, Entity>.asLoaderFunction(): LoaderFunction<Arg, ID, Entity> {
+    return LoaderFunction { argument, ids -> runBlocking { load(argument, ids) } }
+}
+
+/**
+ * Creates a [SuspendLoaderFunction] from the given function.
+ */
+fun <Arg, ID, Entity> suspendLoaderFunction(
+    func: suspend (argument: Arg?, ids: List<ID>) -> List<Entity>): SuspendLoaderFunction<Arg, ID, Entity> {
+    return object : SuspendLoaderFunction<Arg, ID, Entity> {
+        override suspend fun load(argument: Arg?, ids: List<ID>): List<Entity> = func(argument, ids)
+    }
+}
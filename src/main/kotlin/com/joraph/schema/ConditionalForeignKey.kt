@@ -6,12 +6,14 @@ import java.util.function.Predicate
  * A [ForeignKey] that is conditional upon a specific argument being present and
  * a given predicate evaluating to true when the argument is passed to it.
  */
-open class ConditionalForeignKey<T, R, A>(
+open class ConditionalForeignKey<T, R, A> @JvmOverloads constructor(
         entityClass: Class<T>,
         foreignEntity: Class<*>,
         accessor: (T) -> R?,
         val argumentClass: Class<A>,
-        val argumentPredicate: Predicate<A>) : ForeignKey<T, R>(entityClass, foreignEntity, accessor), Property<T, R> {
+        val argumentPredicate: Predicate<A>,
+        optional: Boolean = false,
+        lazy: Boolean = false) : ForeignKey<T, R>(entityClass, foreignEntity, accessor, optional, lazy), Property<T, R> {
 
     /**
      * Indicates whether or not this foreign
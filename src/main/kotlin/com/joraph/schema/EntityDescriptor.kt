@@ -68,12 +68,30 @@ class EntityDescriptor<T> @JvmOverloads constructor(
         private var accessor: Function1<TT, *>? = null
         private var argumentClass: Class<A>? = null
         private var argumentPredicate: Predicate<A>? = null
+        private var optional: Boolean = false
+        private var lazy: Boolean = false
 
         fun withAccessor(accessor: Function1<TT, *>?): ForeignKeyBuilder<A, TT> {
             this.accessor = accessor
             return this
         }
 
+        /**
+         * Makes the foreign key optional, see [ForeignKey.optional].
+         */
+        fun optional(): ForeignKeyBuilder<A, TT> {
+            this.optional = true
+            return this
+        }
+
+        /**
+         * Makes the foreign key lazy, see [ForeignKey.lazy].
+         */
+        fun lazy(): ForeignKeyBuilder<A, TT> {
+            this.lazy = true
+            return this
+        }
+
         @Suppress("UNCHECKED_CAST")
         fun <A2> withPredicate(argumentClass: Class<A2>, argumentPredicate: Predicate<A2>): ForeignKeyBuilder<A2, TT> {
             this.argumentClass = argumentClass as Class<A>?
@@ -85,11 +103,12 @@ class EntityDescriptor<T> @JvmOverloads constructor(
             val acc = accessor
                     ?: throw IllegalStateException("accessor is null")
 
-            return if (argumentClass == null || argumentPredicate == null) {
-                entity.withForeignKey(foreignEntity, acc)
+            entity.foreignKeys.add(if (argumentClass == null || argumentPredicate == null) {
+                ForeignKey(entity.entityClass, foreignEntity, acc, optional, lazy)
             } else {
-                entity.withForeignKey(foreignEntity, acc, argumentClass!!, argumentPredicate!!)
-            }
+                ConditionalForeignKey(entity.entityClass, foreignEntity, acc, argumentClass!!, argumentPredicate!!, optional, lazy)
+            })
+            return entity
         }
     }
 
@@ -2,12 +2,18 @@ package com.joraph.schema
 
 /**
  * Represents a foreign key from one entity to another.  Foreign keys always
- * reference the foreign entity's primary key.
+ * reference the foreign entity's primary key. When [optional] a failure to load
+ * the entities it references doesn't fail the [com.joraph.Query], the failure
+ * is reported on the [com.joraph.ObjectGraph] instead. When [lazy] the entities it
+ * references aren't loaded by queries executed with [com.joraph.Query.withLazyLoading]
+ * until they are first looked up in the [com.joraph.ObjectGraph].
  */
-open class ForeignKey<T, R>(
+open class ForeignKey<T, R> @JvmOverloads constructor(
         val entityClass: Class<T>,
         val foreignEntity: Class<*>,
-        accessor: (T) -> R?) : BaseProperty<T, R>(accessor), Property<T, R> {
+        accessor: (T) -> R?,
+        val optional: Boolean = false,
+        val lazy: Boolean = false) : BaseProperty<T, R>(accessor), Property<T, R> {
 
     override fun toString(): String {
         return (entityClass.name
@@ -24,6 +30,8 @@ open class ForeignKey<T, R>(
 
         if (entityClass != other.entityClass) return false
         if (foreignEntity != other.foreignEntity) return false
+        if (optional != other.optional) return false
+        if (lazy != other.lazy) return false
 
         return true
     }
@@ -32,6 +40,8 @@ open class ForeignKey<T, R>(
         var result = super.hashCode()
         result = 31 * result + entityClass.hashCode()
         result = 31 * result + foreignEntity.hashCode()
+        result = 31 * result + optional.hashCode()
+        result = 31 * result + lazy.hashCode()
         return result
     }
 
@@ -9,7 +9,24 @@ class Schema {
     var isValidated = false
         private set
 
+    /**
+     * Incremented every time the schema is modified or validated, used to
+     * invalidate anything compiled from the schema (such as a [com.joraph.QueryPlan]).
+     */
+    @Volatile
+    var version: Long = 0
+        private set
+
     private val entityDescriptors: MutableMap<Class<*>, EntityDescriptor<*>> = mutableMapOf()
+    private var components: Map<Class<*>, Component> = emptyMap()
+
+    /**
+     * A strongly connected component of the entity graph, entities that can reach each
+     * other by following foreign keys.
+     */
+    private class Component(
+        val level: Int,
+        val isCyclic: Boolean)
 
     /**
      * Asserts that the schema has been validated.
@@ -38,11 +55,19 @@ class Schema {
             .toSet()
     }
 
+    /**
+     * Returns the [EntityDescriptor] configured for exactly the given entity class, or null.
+     */
+    fun getEntityDescriptor(entityClass: Class<*>): EntityDescriptor<*>? {
+        return entityDescriptors[entityClass]
+    }
+
     /**
      * Adds an [EntityDescriptor] to the schema.
      */
     fun addEntityDescriptor(entityDescriptor: EntityDescriptor<*>) {
         isValidated = false
+        version++
         entityDescriptors[entityDescriptor.entityClass] = entityDescriptor
     }
 
@@ -98,6 +123,39 @@ class Schema {
         return entityDescriptors.keys
     }
 
+    /**
+     * Returns whether or not entities of the given class can lead, by following foreign keys,
+     * back to entities of the same class.
+     */
+    fun isRecursive(entityClass: Class<*>): Boolean {
+        assertValidated()
+        return components[entityClass]?.isCyclic ?: false
+    }
+
+    /**
+     * Returns whether or not the given [ForeignKey] is part of a cycle, meaning that following
+     * it can lead back to the entity that it is defined on. Loads for these foreign keys are
+     * recursion steps and are bounded by [com.joraph.ExecutionContext.maxRecursionDepth].
+     */
+    fun isRecursive(foreignKey: ForeignKey<*, *>): Boolean {
+        assertValidated()
+        val component = components[foreignKey.entityClass]
+            ?: return false
+        return component.isCyclic
+                && getEntityDescriptors(foreignKey.foreignEntity).any { components[it.entityClass] === component }
+    }
+
+    /**
+     * Returns the topological level of the given entity class. Entities without foreign keys to
+     * other entities (outside of their own cycle) are at level 0, the rest are one level above the
+     * highest level entity that they reference. Entities can therefore only be reached from
+     * entities at a higher level, or the same level if they are recursive.
+     */
+    fun getLevel(entityClass: Class<*>): Int {
+        assertValidated()
+        return components[entityClass]?.level ?: 0
+    }
+
     /**
      * Validates the [Schema], throwing a [com.joraph.JoraphException] on error.
      */
@@ -118,9 +176,74 @@ class Schema {
             }
         }
 
+        components = findComponents()
+
         // good to go
         isValidated = true
+        version++
         return this
     }
 
+    /**
+     * Finds the strongly connected components of the entity graph using Tarjan's algorithm,
+     * which finds every component after all of the components that it references, allowing
+     * their levels to be computed as they're found.
+     */
+    private fun findComponents(): Map<Class<*>, Component> {
+        val references: Map<Class<*>, List<Class<*>>> = entityDescriptors.values.associate { ed ->
+            ed.entityClass to ed.foreignKeys
+                .flatMap { fk -> getEntityDescriptors(fk.foreignEntity).map { it.entityClass } }
+                .distinct()
+        }
+
+        val ret = mutableMapOf<Class<*>, Component>()
+        val indices = mutableMapOf<Class<*>, Int>()
+        val lowLinks = mutableMapOf<Class<*>, Int>()
+        val stack = ArrayDeque<Class<*>>()
+        val onStack = mutableSetOf<Class<*>>()
+
+        fun connect(entityClass: Class<*>) {
+            indices[entityClass] = indices.size
+            lowLinks[entityClass] = indices.size - 1
+            stack.addLast(entityClass)
+            onStack.add(entityClass)
+
+            for (referenced in references[entityClass].orEmpty()) {
+                if (referenced !in indices) {
+                    connect(referenced)
+                    lowLinks[entityClass] = minOf(lowLinks.getValue(entityClass), lowLinks.getValue(referenced))
+                } else if (referenced in onStack) {
+                    lowLinks[entityClass] = minOf(lowLinks.getValue(entityClass), indices.getValue(referenced))
+                }
+            }
+
+            if (lowLinks[entityClass] != indices[entityClass]) {
+                return
+            }
+
+            val members = mutableListOf<Class<*>>()
+            do {
+                val member = stack.removeLast()
+                onStack.remove(member)
+                members.add(member)
+            } while (member != entityClass)
+
+            val referencedLevels = members
+                .flatMap { references[it].orEmpty() }
+                .filter { it !in members }
+                .map { ret.getValue(it).level + 1 }
+            val component = Component(
+                level = referencedLevels.maxOrNull() ?: 0,
+                isCyclic = members.size > 1 || entityClass in references[entityClass].orEmpty())
+            members.forEach { ret[it] = component }
+        }
+
+        for (entityClass in entityDescriptors.keys) {
+            if (entityClass !in indices) {
+                connect(entityClass)
+            }
+        }
+        return ret
+    }
+
 }
@@ -5,34 +5,55 @@ import static java.util.Arrays.asList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import com.joraph.debug.JoraphDebug;
+import com.joraph.loader.EntityLoaderDescriptorBuilder;
+import com.joraph.loader.LoaderFunction;
 import com.joraph.schema.Author;
 import com.joraph.schema.CompositeValue;
 import com.joraph.schema.Book;
 import com.joraph.schema.BookMessage;
 import com.joraph.schema.Checkout;
 import com.joraph.schema.CheckoutMetaData;
+import com.joraph.schema.ErrorBook;
 import com.joraph.schema.FeaturedBook;
 import com.joraph.schema.Genre;
 import com.joraph.schema.Library;
+import com.joraph.schema.LatestMessage;
 import com.joraph.schema.Message;
 import com.joraph.schema.MessagePair;
 import com.joraph.schema.Schema;
 import com.joraph.schema.UnknownEntityDescriptorException;
 import com.joraph.schema.User;
 import com.joraph.schema.UserEx;
+import com.joraph.schema.UserFavorites;
 import com.joraph.schema.UserFollow;
 import com.joraph.schema.UserMessage;
 
@@ -392,6 +413,284 @@ public class JoraphIntegrationTest
 
 	}
 
+	@Test
+	public void testForeignKeysAreReadOncePerEntity() {
+
+		AtomicInteger reads = new AtomicInteger();
+		ExtensionsKt.<Checkout>findFirstByEntityClass(schema.getEntityDescriptors(Checkout.class), Checkout.class)
+			.withForeignKey(User.class, (Checkout c) -> {
+				reads.incrementAndGet();
+				return c.getUserId();
+			});
+
+		schema.validate();
+
+		Checkout checkout1 = testDb.get(Checkout.class, "checkout1");
+		ObjectGraph objectGraph = context.execute(Checkout.class, checkout1);
+
+		assertNotNull(objectGraph.get(Author.class, "author3"));
+		assertNotNull(objectGraph.get(User.class, "user3"));
+		assertEquals(1, reads.get());
+	}
+
+	@Test
+	public void testSlowLoaderDoesNotHoldBackOtherLoads() {
+
+		CountDownLatch authorsLoaded = new CountDownLatch(1);
+		AtomicBoolean authorsLoadedFirst = new AtomicBoolean();
+
+		context.getLoaderContext()
+			.withLoader(Author.class, (LoaderFunction<Object, Object, Author>) (a, ids) -> {
+				List<Author> ret = load(testDb, Author.class, ids);
+				authorsLoaded.countDown();
+				return ret;
+			})
+			.withLoader(Library.class, (LoaderFunction<Object, Object, Library>) (a, ids) -> {
+				try {
+					authorsLoadedFirst.set(authorsLoaded.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return load(testDb, Library.class, ids);
+			});
+
+		// authors are only reachable through the book, which is loaded alongside the library
+		Checkout checkout1 = testDb.get(Checkout.class, "checkout1");
+		ObjectGraph objectGraph = context.execute(Checkout.class, checkout1);
+
+		assertTrue(authorsLoadedFirst.get());
+		assertNotNull(objectGraph.get(Library.class, "library1"));
+		assertNotNull(objectGraph.get(Author.class, "author3"));
+		assertNotNull(objectGraph.get(User.class, "user3"));
+	}
+
+	@Test
+	public void testVirtualThreadExecutorMode() throws Exception {
+
+		context = new JoraphContext(schema, 2, ExecutorMode.VIRTUAL_THREADS);
+		setupLoaders(testDb, context);
+
+		Method isVirtual;
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			isVirtual = null;
+		}
+		boolean virtualThreadsAvailable = isVirtual != null;
+		assertEquals(virtualThreadsAvailable ? ExecutorMode.VIRTUAL_THREADS : ExecutorMode.PLATFORM_THREADS,
+				context.getExecutorMode());
+
+		Checkout checkout1 = testDb.get(Checkout.class, "checkout1");
+		ObjectGraph objectGraph = context.execute(Checkout.class, checkout1);
+
+		assertNotNull(objectGraph.get(Book.class, "book2"));
+		assertNotNull(objectGraph.get(Author.class, "author3"));
+		assertNotNull(objectGraph.get(User.class, "user3"));
+
+		// at most parallelExecutorCount loads of a loader run at once, on virtual threads if there are any
+		List<Thread> loaderThreads = new CopyOnWriteArrayList<>();
+		assertTrue(runConcurrentAuthorLoads(null, loaderThreads) <= 2);
+		assertFalse(loaderThreads.isEmpty());
+		for (Thread thread : loaderThreads) {
+			assertEquals(virtualThreadsAvailable, isVirtual != null && (Boolean)isVirtual.invoke(thread));
+		}
+
+		// or at most the loader's own cap, which only virtual threads apply
+		int peakRunning = runConcurrentAuthorLoads(1, loaderThreads);
+		assertTrue(peakRunning <= (virtualThreadsAvailable ? 1 : 2));
+	}
+
+	/**
+	 * Runs six queries at once that each load authors with a slow loader, returning how many of
+	 * their loads ran at the same time.
+	 */
+	private int runConcurrentAuthorLoads(Integer maxConcurrency, List<Thread> loaderThreads) throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peakRunning = new AtomicInteger();
+		EntityLoaderDescriptorBuilder<?, ?, String, Author> builder = context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					loaderThreads.add(Thread.currentThread());
+					peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					} finally {
+						running.decrementAndGet();
+					}
+					return load(testDb, Author.class, ids);
+				});
+		if (maxConcurrency != null) {
+			builder.withMaxConcurrency(maxConcurrency);
+		}
+		builder.add();
+
+		List<CompletableFuture<ObjectGraph>> futures = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			Book book = testDb.get(Book.class, i % 2 == 0 ? "book1" : "book2");
+			futures.add(context.executeAsync(new Query(Book.class).withRootObject(book)));
+		}
+		for (CompletableFuture<ObjectGraph> future : futures) {
+			assertNotNull(future.get(5, TimeUnit.SECONDS).get(Author.class, "author3"));
+		}
+		return peakRunning.get();
+	}
+
+	@Test
+	public void testQueryPlansAreCached() {
+
+		QueryPlan plan = context.getQueryPlan(new Query(Book.class));
+		assertSame(plan, context.getQueryPlan(new Query(Book.class)
+				.withRootObject(testDb.get(Book.class, "book1"))));
+		assertNotSame(plan, context.getQueryPlan(new Query(Book.class)
+				.withArgumentProvider(new TestArgs())));
+		assertNotSame(plan, context.getQueryPlan(new Query(Checkout.class)));
+
+		assertNotNull(plan.getDescriptor(Author.class));
+		assertNotNull(plan.getDescriptor(UserEx.class));
+		assertNull(plan.getDescriptor(Checkout.class));
+		assertNotNull(plan.getLoader(Library.class));
+
+		schema.validate();
+		assertNotSame(plan, context.getQueryPlan(new Query(Book.class)));
+	}
+
+	@Test
+	public void testExecuteAllMergesLoads() {
+
+		AtomicInteger authorLoads = new AtomicInteger();
+		context.getLoaderContext()
+			.withLoader(Author.class, (LoaderFunction<Object, Object, Author>) (a, ids) -> {
+				authorLoads.incrementAndGet();
+				return load(testDb, Author.class, ids);
+			});
+
+		Book book1 = testDb.get(Book.class, "book1");
+		Book book2 = testDb.get(Book.class, "book2");
+
+		List<ObjectGraph> objectGraphs = context.executeAll(asList(
+				new Query(Book.class).withRootObject(book1),
+				new Query(Book.class).withRootObject(book2)));
+
+		assertEquals(1, authorLoads.get());
+		assertEquals(2, objectGraphs.size());
+		assertNotNull(objectGraphs.get(0).get(Author.class, "author3"));
+		assertNull(objectGraphs.get(0).get(Author.class, "author2"));
+		assertNotNull(objectGraphs.get(1).get(Author.class, "author2"));
+		assertNotNull(objectGraphs.get(1).get(Author.class, "author3"));
+		assertNotNull(objectGraphs.get(0).get(User.class, "user3"));
+
+		ObjectGraph sharedGraph = context.createEmptyGraph();
+		objectGraphs = context.executeAll(asList(
+				new Query(Book.class).withRootObject(book1),
+				new Query(Book.class).withRootObject(book2)),
+				sharedGraph);
+
+		assertEquals(2, authorLoads.get());
+		assertSame(sharedGraph, objectGraphs.get(0));
+		assertSame(sharedGraph, objectGraphs.get(1));
+		assertNotNull(sharedGraph.get(Book.class, "book1"));
+		assertNotNull(sharedGraph.get(Author.class, "author2"));
+	}
+
+	@Test
+	public void testExecuteAllDoesNotHoldQueriesBackForEachOther() throws Exception {
+
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch authorLoaded = new CountDownLatch(1);
+		AtomicReference<Deadline> authorDeadline = new AtomicReference<>();
+		context.getLoaderContext()
+			.withLoader(Message.class, (LoaderFunction<Object, Object, Message>) (a, ids) -> {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return load(testDb, Message.class, ids);
+			})
+			.withLoader(Author.class, (LoaderFunction<Object, Object, Author>) (a, ids) -> {
+				authorDeadline.set(Deadline.current());
+				authorLoaded.countDown();
+				return load(testDb, Author.class, ids);
+			});
+
+		// the checkout's authors are loaded once its book is, while the message load is still running
+		Checkout checkout1 = testDb.get(Checkout.class, "checkout1");
+		CompletableFuture<List<ObjectGraph>> future = context.executeAllAsync(asList(
+				new Query(Checkout.class).withRootObject(checkout1).withDeadline(5, TimeUnit.SECONDS),
+				new Query(LatestMessage.class).withRootObject(new LatestMessage()
+						.setId("latest1")
+						.setLatestMessageId("message1"))));
+
+		assertTrue(authorLoaded.await(5, TimeUnit.SECONDS));
+		assertNotNull(authorDeadline.get());
+		release.countDown();
+
+		List<ObjectGraph> objectGraphs = future.get(5, TimeUnit.SECONDS);
+		assertNotNull(objectGraphs.get(0).get(Author.class, "author3"));
+	}
+
+	@Test
+	public void testExecuteAllWaitsForTheLatestDeadline() {
+
+		context.getLoaderContext()
+			.withLoader(Author.class, (LoaderFunction<Object, Object, Author>) (a, ids) -> {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return load(testDb, Author.class, ids);
+			});
+		context.setParallelExecutorDefaultTimeoutMillis(100);
+
+		Book book1 = testDb.get(Book.class, "book1");
+		Book book2 = testDb.get(Book.class, "book2");
+
+		List<ObjectGraph> objectGraphs = context.executeAll(asList(
+				new Query(Book.class).withRootObject(book1).withDeadline(5, TimeUnit.SECONDS),
+				new Query(Book.class).withRootObject(book2).withDeadline(10, TimeUnit.SECONDS)));
+
+		assertNotNull(objectGraphs.get(0).get(Author.class, "author3"));
+		assertNotNull(objectGraphs.get(1).get(Author.class, "author2"));
+
+		// without deadlines the default applies
+		assertThrows(QueryTimeoutException.class, () -> context.executeAll(asList(
+				new Query(Book.class).withRootObject(book1),
+				new Query(Book.class).withRootObject(book2))));
+	}
+
+	@Test
+	public void testRecursiveForeignKeysAreBounded() {
+
+		// each error book references the next, up to error-book-5
+		context.getLoaderContext()
+			.withLoader(ErrorBook.class, (LoaderFunction<Object, String, ErrorBook>) (a, ids) -> ids.stream()
+				.map(id -> {
+					int n = Integer.parseInt(id.substring("error-book-".length()));
+					return new ErrorBook()
+						.setBookId(id)
+						.setAnotherErrorBookId(n < 5 ? "error-book-" + (n + 1) : null);
+				})
+				.collect(Collectors.toList()));
+
+		assertTrue(schema.isRecursive(ErrorBook.class));
+		assertFalse(schema.isRecursive(Book.class));
+
+		Query query = new Query(ErrorBook.class)
+			.withRootObject(new ErrorBook()
+				.setBookId("error-book-0")
+				.setAnotherErrorBookId("error-book-1"));
+
+		ObjectGraph objectGraph = new ExecutionContext(context, query, 5).execute();
+		assertNotNull(objectGraph.get(ErrorBook.class, "error-book-5"));
+
+		JoraphException e = assertThrows(JoraphException.class, () -> new ExecutionContext(context, query, 3).execute());
+		assertTrue(e.getMessage().contains("recursion depth"));
+	}
+
 	@Test
 	public void testDebugInfoIsNotCollected() {
 
@@ -435,6 +734,142 @@ public class JoraphIntegrationTest
 		assertFalse(JoraphDebug.hasDebugInfo());
 	}
 
+	@Test
+	public void testExistingGraphOnlyTraversesNewRoots() {
+
+		Book book1 = testDb.get(Book.class, "book1");
+		Book book2 = testDb.get(Book.class, "book2");
+
+		// book2's dependencies were never loaded, it's treated as resolved all the same
+		ObjectGraph objectGraph = new ObjectGraph(schema);
+		objectGraph.addResult(Book.class, "book2", book2);
+
+		context.execute(new Query(Book.class)
+			.withRootObject(book1)
+			.withExistingGraph(objectGraph));
+		assertNotNull(objectGraph.get(Author.class, "author3"));
+		assertNotNull(objectGraph.get(Genre.class, "genre2"));
+		assertNull(objectGraph.get(Author.class, "author2"));
+		assertNull(objectGraph.get(Genre.class, "genre1"));
+
+		// without root objects everything of the query's types in the graph is traversed
+		context.execute(new Query(Book.class)
+			.withExistingGraph(objectGraph));
+		assertNotNull(objectGraph.get(Author.class, "author2"));
+		assertNotNull(objectGraph.get(Genre.class, "genre1"));
+	}
+
+	@Test
+	public void testForkedGraphLeavesSharedBaseUntouched() {
+
+		Book book1 = testDb.get(Book.class, "book1");
+		Book book2 = testDb.get(Book.class, "book2");
+		FrozenObjectGraph base = context.execute(Book.class, book1).freeze();
+
+		ObjectGraph fork = base.fork();
+		context.execute(new Query(Book.class)
+			.withRootObject(book2)
+			.withExistingGraph(fork));
+
+		assertNotNull(fork.get(Author.class, "author3"));
+		assertNotNull(fork.get(Author.class, "author2"));
+		assertNotNull(fork.get(Book.class, "book2"));
+		assertNull(base.get(Author.class, "author2"));
+		assertNull(base.get(Book.class, "book2"));
+		// only what book2 added is stored by the fork
+		assertTrue(fork.getResults().get(Genre.class).containsKey("genre1"));
+		assertFalse(fork.getResults().get(Genre.class).containsKey("genre2"));
+		assertNotNull(fork.get(Genre.class, "genre2"));
+	}
+
+	@Test
+	public void testLazyForeignKeysAreLoadedOnFirstLookup() {
+
+		schema.addEntityDescriptor(UserFavorites.class)
+			.withPrimaryKey(UserFavorites::getUserId)
+			.withForeignKey(User.class, UserFavorites::getUserId)
+			.addForeignKey(Author.class)
+				.withAccessor(UserFavorites::getAuthorIds)
+				.lazy()
+				.add();
+		schema.validate();
+
+		AtomicInteger authorLoads = new AtomicInteger();
+		context.getLoaderContext()
+			.withLoader(Author.class, (LoaderFunction<Object, Object, Author>) (a, ids) -> {
+				authorLoads.incrementAndGet();
+				return load(testDb, Author.class, ids);
+			});
+
+		UserFavorites favorites = new UserFavorites()
+			.setUserId("user1")
+			.setAuthorIds(new HashSet<>(asList("author1", "author2")));
+		ObjectGraph objectGraph = context.execute(new Query(UserFavorites.class)
+			.withRootObject(favorites)
+			.withLazyLoading());
+
+		assertNotNull(objectGraph.get(User.class, "user1"));
+		assertEquals(0, authorLoads.get());
+		assertTrue(objectGraph.hasPending());
+		assertEquals(new HashSet<>(asList("author1", "author2")), objectGraph.getPendingIds(Author.class));
+
+		// the first miss loads every pending author at once
+		assertNotNull(objectGraph.get(Author.class, "author1"));
+		assertNotNull(objectGraph.get(Author.class, "author2"));
+		assertNull(objectGraph.get(Author.class, "author3"));
+		assertEquals(1, authorLoads.get());
+		assertFalse(objectGraph.hasPending());
+
+		// lazy foreign keys are loaded as usual without lazy loading
+		ObjectGraph eagerGraph = context.execute(UserFavorites.class, favorites);
+		assertNotNull(eagerGraph.get(Author.class, "author2"));
+		assertEquals(2, authorLoads.get());
+	}
+
+	@Test
+	public void testLazyForeignKeysAreLoadedWithTheArgumentsOfTheirQuery() {
+
+		schema.addEntityDescriptor(UserFavorites.class)
+			.withPrimaryKey(UserFavorites::getUserId)
+			.withForeignKey(User.class, UserFavorites::getUserId)
+			.addForeignKey(Author.class)
+				.withAccessor(UserFavorites::getAuthorIds)
+				.lazy()
+				.add();
+		schema.validate();
+
+		Map<String, String> argumentsById = new ConcurrentHashMap<>();
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.expectingArgument(String.class, (String argument) -> argument)
+				.<String, Author>withLoader((argument, ids) -> {
+					ids.forEach((id) -> argumentsById.put(id, argument));
+					return load(testDb, Author.class, ids);
+				})
+				.add();
+
+		// both queries leave their authors pending in the same graph
+		ObjectGraph objectGraph = context.execute(new Query(UserFavorites.class)
+			.withRootObject(new UserFavorites()
+				.setUserId("user1")
+				.setAuthorIds(new HashSet<>(asList("author1"))))
+			.withArgumentProvider("first")
+			.withLazyLoading());
+		context.execute(new Query(UserFavorites.class)
+			.withRootObject(new UserFavorites()
+				.setUserId("user2")
+				.setAuthorIds(new HashSet<>(asList("author2"))))
+			.withArgumentProvider("second")
+			.withExistingGraph(objectGraph)
+			.withLazyLoading());
+
+		assertNotNull(objectGraph.get(Author.class, "author1"));
+		assertNotNull(objectGraph.get(Author.class, "author2"));
+		assertEquals("first", argumentsById.get("author1"));
+		assertEquals("second", argumentsById.get("author2"));
+		assertFalse(objectGraph.hasPending());
+	}
+
 	/* TODO fix https://github.com/briandilley/joraph/issues/7 and re-enable, or rewrite with 2 entities */
 //	@Test(expected = UnconfiguredLoaderException.class)
 //	public void testErrorBookWhenAttemptingToLoad() throws Exception {
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import static java.util.Arrays.asList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
@@ -11,14 +12,38 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import com.joraph.debug.JoraphDebug;
+import com.joraph.debug.LoaderDebug;
+import com.joraph.loader.Bulkhead;
+import com.joraph.loader.BulkheadFullException;
+import com.joraph.loader.HedgingPolicy;
+import com.joraph.loader.LoaderFunction;
+import com.joraph.loader.LoaderTimeoutException;
 import com.joraph.loader.MissingLoaderArgumentException;
+import com.joraph.loader.ShardedLoaderFunction;
 import com.joraph.schema.Author;
 import com.joraph.schema.Book;
+import com.joraph.schema.Genre;
 import com.joraph.schema.FeaturedBook;
 import com.joraph.schema.Library;
 import com.joraph.schema.Schema;
+import com.joraph.schema.UnknownEntityDescriptorException;
 import com.joraph.schema.User;
 import com.joraph.schema.UserFavorites;
 
@@ -187,4 +212,600 @@ public class LoaderIntegrationTest
 
 	}
 
+	@Test
+	public void testFailureToStartALaterLoadCancelsRunningLoads() throws Exception {
+
+		CountDownLatch userLoadStarted = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		context.getLoaderContext()
+			.addLoader(User.class)
+				.<String, User>withLoader(ids -> {
+					userLoadStarted.countDown();
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+						throw new RuntimeException(e);
+					}
+					return load(testDb, User.class, ids);
+				})
+				.add()
+			.addLoader(Book.class)
+				.<String, Book>withLoader(ids -> {
+					try {
+						userLoadStarted.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					return load(testDb, Book.class, ids);
+				})
+				.add()
+			.addLoader(Author.class)
+				.expectingArgument(TestArgs.class, TestArgs::incrementAndGetArg2)
+				.withLoader(this::loadAuthors)
+				.add();
+
+		// the author load is started once the book is loaded, while the user load is still running
+		FeaturedBook featuredBook1 = testDb.get(FeaturedBook.class, "book1");
+		CompletableFuture<ObjectGraph> future = context.executeAsync(new Query(FeaturedBook.class)
+				.withRootObject(featuredBook1));
+
+		ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof MissingLoaderArgumentException);
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testAsyncLoaders() throws Exception {
+
+		context.getLoaderContext()
+			.addLoader(Book.class)
+				.expectingArgument(TestArgs.class, TestArgs::incrementAndGetArg1)
+				.<String, Book>withAsyncLoader((arg, ids) -> CompletableFuture.supplyAsync(() -> loadBooks(arg, ids)))
+				.add()
+			.withAsyncLoader(Author.class, (a, ids) -> CompletableFuture.completedFuture(load(testDb, Author.class, ids)));
+
+		TestArgs argument = new TestArgs();
+
+		FeaturedBook featuredBook1 = testDb.get(FeaturedBook.class, "book1");
+
+		ObjectGraph objectGraph = context.executeAsync(new Query(FeaturedBook.class)
+				.withRootObject(featuredBook1)
+				.withArgumentProvider(argument))
+				.get(5, TimeUnit.SECONDS);
+		assertNotNull(objectGraph);
+
+		assertNotNull(objectGraph.get(Book.class, "book1"));
+		assertNotNull(objectGraph.get(Author.class, "author3"));
+		assertNotNull(objectGraph.get(User.class, "user3"));
+		assertTrue(argument.getArg1().get() > 0);
+	}
+
+	@Test
+	public void testAsyncLoaderFailureFailsQuery() {
+
+		context.getLoaderContext()
+			.withAsyncLoader(Author.class, (a, ids) -> {
+				CompletableFuture<List<Author>> ret = new CompletableFuture<>();
+				ret.completeExceptionally(new IllegalStateException("down"));
+				return ret;
+			});
+
+		Book book1 = testDb.get(Book.class, "book1");
+
+		assertThrows(JoraphException.class, () -> context.execute(Book.class, book1));
+
+		ExecutionException e = assertThrows(ExecutionException.class, () -> context.executeAsync(new Query(Book.class)
+				.withRootObject(book1))
+				.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof JoraphException);
+	}
+
+	@Test
+	public void testCoalescingLoaderBatchesConcurrentQueries() throws Exception {
+
+		AtomicInteger calls = new AtomicInteger();
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					calls.incrementAndGet();
+					return load(testDb, Author.class, ids);
+				})
+				.withCoalescing(200, TimeUnit.MILLISECONDS)
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+		Book book2 = testDb.get(Book.class, "book2");
+
+		CompletableFuture<ObjectGraph> future1 = context.executeAsync(new Query(Book.class).withRootObject(book1));
+		CompletableFuture<ObjectGraph> future2 = context.executeAsync(new Query(Book.class).withRootObject(book2));
+
+		ObjectGraph objectGraph1 = future1.get(5, TimeUnit.SECONDS);
+		ObjectGraph objectGraph2 = future2.get(5, TimeUnit.SECONDS);
+
+		assertEquals(1, calls.get());
+		assertNotNull(objectGraph1.get(Author.class, book1.getAuthorId()));
+		assertNotNull(objectGraph2.get(Author.class, book2.getAuthorId()));
+		if (!book1.getAuthorId().equals(book2.getAuthorId())) {
+			assertNull(objectGraph1.get(Author.class, book2.getAuthorId()));
+		}
+	}
+
+	@Test
+	public void testCoalescingLoaderSplitsLargeLoadsAndKeepsTheirContext() throws Exception {
+
+		List<List<String>> batches = new CopyOnWriteArrayList<>();
+		List<Deadline> deadlines = new CopyOnWriteArrayList<>();
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					batches.add(new ArrayList<>(ids));
+					deadlines.add(Deadline.current());
+					return ids.stream().map(id -> new Author().setId(id)).collect(Collectors.toList());
+				})
+				.withCoalescing(10, TimeUnit.MILLISECONDS, 2)
+				.add();
+
+		Query query = new Query(Book.class).withDeadline(5, TimeUnit.SECONDS);
+		for (int i = 1; i <= 5; i++) {
+			query.withRootObject(new Book().setId("book" + i).setAuthorId("author" + i));
+		}
+		ObjectGraph objectGraph = context.executeAsync(query).get(5, TimeUnit.SECONDS);
+
+		for (int i = 1; i <= 5; i++) {
+			assertNotNull(objectGraph.get(Author.class, "author" + i));
+		}
+		assertEquals(3, batches.size());
+		assertTrue(batches.stream().allMatch(batch -> batch.size() <= 2));
+		// the last batch is dispatched by the scheduler once its window is up
+		assertTrue(deadlines.stream().allMatch(Objects::nonNull));
+	}
+
+	@Test
+	public void testCoalescingLoaderFailsOnEntitiesWithoutADescriptor() {
+
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> ids.stream()
+					.map(id -> (Author)new Author() { }.setId(id))
+					.collect(Collectors.toList()))
+				.withCoalescing(10, TimeUnit.MILLISECONDS)
+				.add();
+
+		CompletableFuture<List<Author>> future = context.getLoaderContext()
+			.loadAsync(Author.class, Collections.emptyList(), asList("author1"), context.getExecutorService());
+
+		ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof UnknownEntityDescriptorException);
+	}
+
+	@Test
+	public void testSingleFlightLoaderSharesInFlightLoads() throws Exception {
+
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					calls.incrementAndGet();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					return load(testDb, Author.class, ids);
+				})
+				.withSingleFlight()
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+
+		CompletableFuture<ObjectGraph> future1 = context.executeAsync(new Query(Book.class).withRootObject(book1));
+		CompletableFuture<ObjectGraph> future2 = context.executeAsync(new Query(Book.class).withRootObject(book1));
+		release.countDown();
+
+		assertNotNull(future1.get(5, TimeUnit.SECONDS).get(Author.class, book1.getAuthorId()));
+		assertNotNull(future2.get(5, TimeUnit.SECONDS).get(Author.class, book1.getAuthorId()));
+		assertEquals(1, calls.get());
+
+		// nothing is left in flight, so the next query loads again
+		context.execute(Book.class, book1);
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testSingleFlightLoadIsCancelledOnceEveryWaiterIs() throws Exception {
+
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					calls.incrementAndGet();
+					started.countDown();
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+						throw new RuntimeException(e);
+					}
+					return load(testDb, Author.class, ids);
+				})
+				.withSingleFlight()
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+
+		CompletableFuture<ObjectGraph> future1 = context.executeAsync(new Query(Book.class).withRootObject(book1));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		CompletableFuture<ObjectGraph> future2 = context.executeAsync(new Query(Book.class).withRootObject(book1));
+
+		// the other query still waits on the shared fetch
+		future1.cancel(true);
+		assertFalse(interrupted.await(200, TimeUnit.MILLISECONDS));
+
+		future2.cancel(true);
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testDeadlineCancelsRunningLoaders() throws Exception {
+
+		AtomicReference<Deadline> deadlineSeen = new AtomicReference<>();
+		CountDownLatch interrupted = new CountDownLatch(1);
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					deadlineSeen.set(Deadline.current());
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+						throw new RuntimeException(e);
+					}
+					return load(testDb, Author.class, ids);
+				})
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+
+		long start = System.nanoTime();
+		assertThrows(QueryTimeoutException.class, () -> context.execute(new Query(Book.class)
+				.withRootObject(book1)
+				.withDeadline(200, TimeUnit.MILLISECONDS)));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertNotNull(deadlineSeen.get());
+		assertTrue(deadlineSeen.get().remaining(TimeUnit.MILLISECONDS) <= 200);
+
+		ExecutionException e = assertThrows(ExecutionException.class, () -> context.executeAsync(new Query(Book.class)
+				.withRootObject(book1)
+				.withDeadline(200, TimeUnit.MILLISECONDS))
+				.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof QueryTimeoutException);
+	}
+
+	@Test
+	public void testOptionalLoaderFailureDegradesGraph() {
+
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					throw new IllegalStateException("down");
+				})
+				.optional()
+				.add()
+			.addLoader(Genre.class)
+				.<String, Genre>withLoader(ids -> {
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return load(testDb, Genre.class, ids);
+				})
+				.withTimeout(100, TimeUnit.MILLISECONDS)
+				.optional()
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+		ObjectGraph objectGraph = context.execute(Book.class, book1);
+
+		assertNotNull(objectGraph.get(Book.class, "book1"));
+		assertNotNull(objectGraph.get(User.class, "user3"));
+		assertNull(objectGraph.get(Author.class, "author3"));
+		assertTrue(objectGraph.hasErrors());
+		assertEquals(2, objectGraph.getErrors().size());
+		assertTrue(objectGraph.getErrors().stream()
+				.anyMatch(e -> e.getEntityClass() == Author.class && e.getIds().contains("author3")));
+		assertTrue(objectGraph.getErrors().stream()
+				.anyMatch(e -> e.getEntityClass() == Genre.class && e.getCause() instanceof LoaderTimeoutException));
+	}
+
+	@Test
+	public void testOptionalForeignKeyFailureDegradesGraph() {
+
+		schema.addEntityDescriptor(UserFavorites.class)
+			.withPrimaryKey(UserFavorites::getUserId)
+			.withForeignKey(User.class, UserFavorites::getUserId)
+			.addForeignKey(Author.class)
+				.withAccessor(UserFavorites::getAuthorIds)
+				.optional()
+				.add();
+		schema.validate();
+
+		context.getLoaderContext()
+			.withLoader(Author.class, (LoaderFunction<Object, Object, Author>) (a, ids) -> {
+				throw new IllegalStateException("down");
+			});
+
+		UserFavorites favorites = new UserFavorites()
+			.setUserId("user1")
+			.setAuthorIds(new HashSet<>(asList("author1", "author2")));
+		ObjectGraph objectGraph = context.execute(UserFavorites.class, favorites);
+
+		assertNotNull(objectGraph.get(User.class, "user1"));
+		assertNull(objectGraph.get(Author.class, "author1"));
+		assertEquals(1, objectGraph.getErrors().size());
+
+		// the same authors referenced by a required foreign key fail the query
+		Book book1 = testDb.get(Book.class, "book1");
+		assertThrows(JoraphException.class, () -> context.execute(Book.class, book1));
+	}
+
+	@Test
+	public void testRequiredReferenceToFailedOptionalLoadFailsQuery() {
+
+		schema.addEntityDescriptor(UserFavorites.class)
+			.withPrimaryKey(UserFavorites::getUserId)
+			.addForeignKey(Author.class)
+				.withAccessor(UserFavorites::getAuthorIds)
+				.optional()
+				.add();
+		schema.validate();
+
+		context.getLoaderContext()
+			.withLoader(Author.class, (LoaderFunction<Object, Object, Author>) (a, ids) -> {
+				throw new IllegalStateException("down");
+			});
+		context.getLoaderContext()
+			.withLoader(Book.class, (LoaderFunction<Object, Object, Book>) (a, ids) -> {
+				// the optional reference to author3 fails before book1's required one is read
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return load(testDb, Book.class, ids);
+			});
+
+		UserFavorites favorites = new UserFavorites()
+			.setUserId("user1")
+			.setAuthorIds(new HashSet<>(Collections.singletonList("author3")));
+		FeaturedBook featuredBook = testDb.get(FeaturedBook.class, "book1");
+
+		assertThrows(JoraphException.class, () -> context.execute(
+			asList(UserFavorites.class, FeaturedBook.class),
+			asList(favorites, featuredBook)));
+	}
+
+	@Test
+	public void testHedgedLoaderUsesFastestResponse() throws Exception {
+
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch slowCallCancelled = new CountDownLatch(1);
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					if (calls.incrementAndGet() == 1) {
+						try {
+							Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+						} catch (InterruptedException e) {
+							slowCallCancelled.countDown();
+							throw new RuntimeException(e);
+						}
+					}
+					return load(testDb, Author.class, ids);
+				})
+				.withHedging(HedgingPolicy.fixed(50, TimeUnit.MILLISECONDS, 100))
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+
+		long start = System.nanoTime();
+		ObjectGraph objectGraph = context.execute(Book.class, book1);
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+		assertNotNull(objectGraph.get(Author.class, "author3"));
+		assertEquals(2, calls.get());
+		assertTrue(slowCallCancelled.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testHedgedLoadWaitsForAHedgeThatIsStillStarting() throws Exception {
+
+		AtomicInteger calls = new AtomicInteger();
+		CompletableFuture<List<Author>> original = new CompletableFuture<>();
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withAsyncLoader(ids -> {
+					if (calls.incrementAndGet() == 1) {
+						return original;
+					}
+					// the original fails while the hedge is still being started
+					original.completeExceptionally(new RuntimeException("original failed"));
+					return CompletableFuture.completedFuture(load(testDb, Author.class, ids));
+				})
+				.withHedging(HedgingPolicy.fixed(10, TimeUnit.MILLISECONDS, 100))
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+		ObjectGraph objectGraph = context.executeAsync(new Query(Book.class).withRootObject(book1))
+			.get(5, TimeUnit.SECONDS);
+
+		assertNotNull(objectGraph.get(Author.class, "author3"));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testBulkheadLimitsConcurrentLoads() throws Exception {
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Bulkhead bulkhead = new Bulkhead(1, 1, Bulkhead.RejectionPolicy.FAIL);
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					started.countDown();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					return load(testDb, Author.class, ids);
+				})
+				.withBulkhead(bulkhead)
+				.add();
+
+		Book book1 = testDb.get(Book.class, "book1");
+		Book book2 = testDb.get(Book.class, "book2");
+
+		CompletableFuture<ObjectGraph> future1 = context.executeAsync(new Query(Book.class).withRootObject(book1));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		CompletableFuture<ObjectGraph> future2 = context.executeAsync(new Query(Book.class).withRootObject(book2));
+		CompletableFuture<ObjectGraph> future3 = context.executeAsync(new Query(Book.class).withRootObject(book2));
+
+		assertEquals(1, bulkhead.getActiveCount());
+		assertEquals(1, bulkhead.getQueuedCount());
+
+		ExecutionException e = assertThrows(ExecutionException.class, () -> future3.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof BulkheadFullException);
+
+		release.countDown();
+		assertNotNull(future1.get(5, TimeUnit.SECONDS).get(Author.class, "author3"));
+		assertNotNull(future2.get(5, TimeUnit.SECONDS).get(Author.class, "author2"));
+
+		assertEquals(0, bulkhead.getActiveCount());
+		assertEquals(1, bulkhead.getPeakActiveCount());
+		assertEquals(2, bulkhead.getStartedCount());
+		assertEquals(1, bulkhead.getQueuedTotalCount());
+		assertEquals(1, bulkhead.getRejectedCount());
+	}
+
+	@Test
+	public void testOversizedBatchesAreChunked() throws Exception {
+
+		AtomicInteger calls = new AtomicInteger();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peakRunning = new AtomicInteger();
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withLoader(ids -> {
+					calls.incrementAndGet();
+					peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try {
+						assertTrue(ids.size() <= 3);
+						Thread.sleep(50);
+						return load(testDb, Author.class, ids);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					} finally {
+						running.decrementAndGet();
+					}
+				})
+				.withMaxBatchSize(3, 2)
+				.add();
+
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			ids.add("author" + i);
+		}
+
+		JoraphDebug.startDebug();
+		try {
+			List<Author> authors = context.getLoaderContext()
+				.loadAsync(Author.class, Collections.emptyList(), ids, context.getExecutorService())
+				.get(5, TimeUnit.SECONDS);
+			assertEquals(asList("author1", "author2", "author3"),
+				authors.stream().map(Author::getId).collect(Collectors.toList()));
+
+			List<LoaderDebug> debugs = JoraphDebug.getDebugInfo().getLoaderDebugs();
+			assertEquals(4, debugs.size());
+			assertEquals(new HashSet<>(asList(0, 1, 2, 3)),
+				debugs.stream().map(LoaderDebug::getChunkIndex).collect(Collectors.toSet()));
+			assertTrue(debugs.stream().allMatch(d -> d.getChunkCount() == 4));
+		} finally {
+			JoraphDebug.finishDebug();
+		}
+
+		assertEquals(4, calls.get());
+		assertEquals(2, peakRunning.get());
+	}
+
+	@Test
+	public void testChunksThatCompleteRightAwayDoNotRecurse() throws Exception {
+
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.<String, Author>withAsyncLoader(ids -> CompletableFuture.completedFuture(ids.stream()
+					.map(id -> new Author().setId(id))
+					.collect(Collectors.toList())))
+				.withMaxBatchSize(1, 1)
+				.add();
+
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 20_000; i++) {
+			ids.add("author" + i);
+		}
+
+		List<Author> authors = context.getLoaderContext()
+			.loadAsync(Author.class, Collections.emptyList(), ids, context.getExecutorService())
+			.get(5, TimeUnit.SECONDS);
+		assertEquals(ids, authors.stream().map(Author::getId).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testShardedLoaderLoadsShardsConcurrently() throws Exception {
+
+		Map<Integer, List<String>> shardIds = new ConcurrentHashMap<>();
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		context.getLoaderContext()
+			.addLoader(Author.class)
+				.withShardedLoaderFunction(new ShardedLoaderFunction<Object, String, Author>() {
+					@Override
+					public int shardOf(String id) {
+						return (id.charAt(id.length() - 1) - '0') % 2;
+					}
+
+					@Override
+					public List<Author> load(int shard, Object argument, List<String> ids) {
+						shardIds.put(shard, ids);
+						bothStarted.countDown();
+						try {
+							// both shards have to be loading at once for this to return
+							assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+						return LoaderIntegrationTest.this.load(testDb, Author.class, ids);
+					}
+				}, 1)
+				.add();
+
+		List<Author> authors = context.getLoaderContext()
+			.loadAsync(Author.class, Collections.emptyList(), asList("author1", "author2", "author3"), context.getExecutorService())
+			.get(5, TimeUnit.SECONDS);
+
+		assertEquals(asList("author1", "author3"), shardIds.get(1));
+		assertEquals(asList("author2"), shardIds.get(0));
+		assertEquals(new HashSet<>(asList("author1", "author2", "author3")),
+			authors.stream().map(Author::getId).collect(Collectors.toSet()));
+
+		ObjectGraph graph = context.execute(new Query(Book.class).withRootObject(testDb.get(Book.class, "book1")));
+		assertNotNull(graph.get(Author.class, "author3"));
+	}
+
 }
@@ -1,5 +1,6 @@
 package com.joraph.schema;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -45,6 +46,47 @@ public class SchemaTest {
 		schema.validate();
 	}
 
+	@Test
+	public void testCycleAnalysis() {
+		schema.addEntityDescriptor(Author.class)
+				.withPrimaryKey(Author::getId)
+				.withForeignKey(User.class, Author::getId);
+		schema.addEntityDescriptor(User.class)
+				.withPrimaryKey(User::getId)
+				.withForeignKey(Library.class, User::getId);
+		schema.addEntityDescriptor(Library.class)
+				.withPrimaryKey(Library::getId)
+				.withForeignKey(Author.class, Library::getId)
+				.withForeignKey(Genre.class, Library::getId);
+		schema.addEntityDescriptor(Genre.class)
+				.withPrimaryKey(Genre::getId);
+		schema.addEntityDescriptor(Book.class)
+				.withPrimaryKey(Book::getId)
+				.withForeignKey(Author.class, Book::getAuthorId)
+				.withForeignKey(Genre.class, Book::getGenreId);
+
+		assertThrows(IllegalStateException.class, () -> schema.isRecursive(Author.class));
+		schema.validate();
+
+		assertTrue(schema.isRecursive(Author.class));
+		assertTrue(schema.isRecursive(User.class));
+		assertTrue(schema.isRecursive(Library.class));
+		assertFalse(schema.isRecursive(Genre.class));
+		assertFalse(schema.isRecursive(Book.class));
+
+		for (ForeignKey<?, ?> fk : schema.describeForeignKeysFrom(Library.class)) {
+			assertEquals(fk.getForeignEntity() == Author.class, schema.isRecursive(fk));
+		}
+		for (ForeignKey<?, ?> fk : schema.describeForeignKeysFrom(Book.class)) {
+			assertFalse(schema.isRecursive(fk));
+		}
+
+		assertEquals(0, schema.getLevel(Genre.class));
+		assertEquals(1, schema.getLevel(Author.class));
+		assertEquals(1, schema.getLevel(Library.class));
+		assertEquals(2, schema.getLevel(Book.class));
+	}
+
 	@Test
 	public void testMissingPrimaryKeyException() {
 		assertThrows(MissingPrimaryKeyException.class, () -> {
@@ -0,0 +1,104 @@
+package com.joraph
+
+import com.joraph.schema.Author
+import com.joraph.schema.Book
+import com.joraph.schema.FeaturedBook
+import com.joraph.schema.Genre
+import com.joraph.schema.Schema
+import com.joraph.schema.User
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import kotlin.coroutines.coroutineContext
+
+class CoroutineExecutionTest : AbstractJoraphTest() {
+
+    private lateinit var schema: Schema
+    private lateinit var testDb: ObjectGraph
+    private lateinit var context: JoraphContext
+
+    @BeforeEach
+    fun setUp() {
+        schema = setupSchema(Schema())
+        testDb = setupTestDb(ObjectGraph())
+        context = JoraphContext(schema)
+        setupLoaders(testDb, context)
+    }
+
+    @Test
+    fun `Suspend loaders run as child coroutines of the caller`() {
+        val callers = mutableListOf<String?>()
+
+        context.loaderContext
+            .addLoader(Book::class.java)
+                .expectingArgument(TestArgs::class.java, TestArgs::incrementAndGetArg1)
+                .withSuspendLoader { _, ids: List<String> ->
+                    callers.add(coroutineContext[CoroutineName]?.name)
+                    delay(10)
+                    load(testDb, Book::class.java, ids)
+                }
+                .add()
+            .withSuspendLoader(Author::class.java) { ids: Collection<String> ->
+                callers.add(coroutineContext[CoroutineName]?.name)
+                load(testDb, Author::class.java, ids)
+            }
+
+        val featuredBook1 = testDb[FeaturedBook::class.java, "book1"]!!
+
+        val objectGraph = runBlocking(CoroutineName("caller")) {
+            context.executeSuspending(Query(FeaturedBook::class.java)
+                .withRootObject(featuredBook1)
+                .withArgumentProvider(TestArgs()))
+        }
+
+        assertNotNull(objectGraph[Book::class.java, "book1"])
+        assertNotNull(objectGraph[Author::class.java, "author3"])
+        assertNotNull(objectGraph[User::class.java, "user3"])
+        assertEquals(listOf("caller", "caller"), callers)
+    }
+
+    @Test
+    fun `Suspend loaders can be used without a coroutine`() {
+        context.loaderContext
+            .withSuspendLoader(Author::class.java) { ids: Collection<String> ->
+                delay(10)
+                load(testDb, Author::class.java, ids)
+            }
+
+        val objectGraph = context.execute(Book::class.java, testDb[Book::class.java, "book1"]!!)
+        assertNotNull(objectGraph[Author::class.java, "author3"])
+    }
+
+    @Test
+    fun `Suspend loaders used without a coroutine don't run on the calling thread`() {
+        val caller = Thread.currentThread()
+        val loaderThreads = mutableListOf<Thread>()
+        val genreStarted = CountDownLatch(1)
+
+        // blocks before suspending until the genre load starts, which it couldn't do if the
+        // author load ran on the thread scheduling the query's loads
+        context.loaderContext
+            .withSuspendLoader(Author::class.java) { ids: Collection<String> ->
+                synchronized(loaderThreads) { loaderThreads.add(Thread.currentThread()) }
+                assertTrue(genreStarted.await(5, TimeUnit.SECONDS))
+                load(testDb, Author::class.java, ids)
+            }
+            .withSuspendLoader(Genre::class.java) { ids: Collection<String> ->
+                synchronized(loaderThreads) { loaderThreads.add(Thread.currentThread()) }
+                genreStarted.countDown()
+                load(testDb, Genre::class.java, ids)
+            }
+
+        val objectGraph = context.execute(Book::class.java, testDb[Book::class.java, "book1"]!!)
+        assertNotNull(objectGraph[Author::class.java, "author3"])
+        assertNotNull(objectGraph[Genre::class.java, "genre2"])
+        assertEquals(2, loaderThreads.size)
+        assertFalse(loaderThreads.contains(caller))
+    }
+
+}
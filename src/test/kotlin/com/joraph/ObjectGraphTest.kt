@@ -2,8 +2,13 @@ package com.joraph
 
 import com.joraph.schema.Author
 import com.joraph.schema.Book
+import com.joraph.schema.Checkout
 import com.joraph.schema.Rating
 import com.joraph.schema.Schema
+import com.joraph.schema.User
+import com.joraph.schema.UserEx
+import java.util.concurrent.CyclicBarrier
+import java.util.stream.Collectors
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
@@ -128,4 +133,261 @@ class ObjectGraphTest : AbstractJoraphTest() {
         assertEquals(1, strings.size)
     }
 
+    @Test
+    fun `Primitive ids are stored without boxing`() {
+        val graph = ObjectGraph(schema, primitiveIds = true)
+        val boxed = ObjectGraph(schema)
+        for (id in 0L until 1000L) {
+            graph[String::class.java, id] = "$id string"
+            boxed[String::class.java, id] = "$id string"
+        }
+
+        assertEquals("5 string", graph[String::class.java, 5L])
+        val boxedId: Any = 5L
+        assertEquals("5 string", graph[String::class.java, boxedId])
+        assertNull(graph[String::class.java, 5])
+        assertNull(graph[String::class.java, 1000L])
+        assertEquals(boxed, graph)
+        assertEquals((0L until 1000L).toSet(), graph.getIds<Long>(String::class.java))
+
+        // removals leave the ids that probed past them reachable
+        for (id in 0L until 1000L step 2) {
+            assertTrue(graph.remove(String::class.java, id))
+        }
+        assertEquals(500, graph.size)
+        for (id in 0L until 1000L) {
+            assertEquals(if (id % 2 == 0L) null else "$id string", graph[String::class.java, id])
+        }
+    }
+
+    @Test
+    fun `Types can be told to use primitive ids`() {
+        subject.withPrimitiveIds(Author::class.java, Int::class.javaPrimitiveType!!)
+        val author = Author()
+        author.name = "Author 7"
+        subject[Author::class.java, 7] = author
+
+        assertSame(author, subject[Author::class.java, 7])
+        val boxedId: Any = 7
+        assertSame(author, subject[Author::class.java, boxedId])
+        assertEquals(listOf(author), subject.getList(Author::class.java))
+        assertThrows(IllegalArgumentException::class.java) {
+            subject[Author::class.java, "seven"] = author
+        }
+    }
+
+    @Test
+    fun `Maps are live read-only views and snapshots are copies`() {
+        val map = subject.getMap<String>(String::class.java)
+        assertTrue(map.isEmpty())
+        assertFalse(subject.results.containsKey(String::class.java))
+
+        subject[String::class.java, 1] = "one"
+        val view = subject.getMap<String>(String::class.java)
+        val snapshot = subject.getMapSnapshot<String>(String::class.java)
+        subject[String::class.java, 2] = "two"
+
+        assertEquals(mapOf(1 to "one", 2 to "two"), view)
+        assertEquals(mapOf(1 to "one"), snapshot)
+        assertThrows(UnsupportedOperationException::class.java) {
+            (view as MutableMap<Any, String>).remove(1)
+        }
+        assertEquals(listOf("two", "one"), subject.getList(String::class.java, listOf(2, 3, null, 1)))
+        assertEquals(setOf(1, 2), subject.streamIds(String::class.java).collect(Collectors.toSet()))
+    }
+
+    @Test
+    fun `Frozen graphs are immutable copies`() {
+        val author = Author()
+        author.id = "author1"
+        subject.addResult(author)
+        val user = UserEx()
+        user.id = "user1"
+        subject.addResult(user)
+        for (id in 0L until 100L) {
+            subject[String::class.java, id] = "$id string"
+        }
+
+        val frozen = subject.freeze()
+        subject[String::class.java, 100L] = "100 string"
+
+        assertEquals(102, frozen.size)
+        assertSame(author, frozen[Author::class.java, "author1"])
+        assertSame(user, frozen[User::class.java, "user1"])
+        assertSame(user, frozen[UserEx::class.java, "user1"])
+        assertEquals("42 string", frozen[String::class.java, 42L])
+        assertNull(frozen[String::class.java, 42])
+        assertNull(frozen[String::class.java, 100L])
+        assertEquals(100, frozen.getList(String::class.java).size)
+        assertEquals(listOf("2 string", "1 string"), frozen.getList(String::class.java, listOf(2L, 1L, 1000L)))
+        assertThrows(EntityNotFoundException::class.java) {
+            frozen.getRequired(Author::class.java, "author2")
+        }
+
+        subject.remove(String::class.java, 100L)
+        assertEquals(subject, frozen.thaw())
+    }
+
+    @Test
+    fun `Forks read through to their parent and keep their own changes`() {
+        for (id in 0 until 10) {
+            subject[String::class.java, id] = "$id string"
+        }
+        val base = subject.freeze()
+
+        val fork = base.fork()
+        assertEquals(10, fork.size)
+        assertEquals("3 string", fork[String::class.java, 3])
+
+        fork[String::class.java, 10] = "10 string"
+        fork[String::class.java, 3] = "3 replaced"
+        assertTrue(fork.remove(String::class.java, 4))
+        assertFalse(fork.remove(String::class.java, 4))
+
+        assertEquals(10, fork.size)
+        assertEquals("3 replaced", fork[String::class.java, 3])
+        assertNull(fork[String::class.java, 4])
+        assertFalse(fork.has(String::class.java, 4))
+        assertEquals((0..10).toSet() - 4, fork.getIds<Int>(String::class.java))
+        assertEquals(listOf("3 replaced", "5 string"), fork.getList(String::class.java, listOf(3, 4, 5)))
+
+        // the parent is untouched
+        assertEquals("3 string", base[String::class.java, 3])
+        assertEquals("4 string", base[String::class.java, 4])
+        assertNull(base[String::class.java, 10])
+
+        val expected = base.thaw()
+        expected[String::class.java, 10] = "10 string"
+        expected[String::class.java, 3] = "3 replaced"
+        expected.remove(String::class.java, 4)
+        assertEquals(expected, fork)
+        assertEquals(expected.hashCode(), fork.hashCode())
+        val copy = ObjectGraph::class.java.getMethod("clone").invoke(fork) as ObjectGraph
+        assertEquals(10, copy.size)
+
+        fork[String::class.java, 4] = "4 again"
+        assertEquals("4 again", fork[String::class.java, 4])
+        assertEquals(11, fork.size)
+        assertEquals(11, fork.removeAll(String::class.java))
+        assertTrue(fork.isEmpty())
+        assertEquals(10, base.size)
+    }
+
+    @Test
+    fun `Views resolve their type once and follow changes to the graph`() {
+        val view = subject.view(UserEx::class.java)
+        assertEquals(User::class.java, view.graphTypeKey)
+        assertNull(view["user1"])
+
+        val user = UserEx()
+        user.id = "user1"
+        subject.addResult(user)
+        assertSame(user, view["user1"])
+        assertTrue(view.has("user1"))
+        assertEquals(listOf(user), view.getList(listOf("user2", "user1")))
+        assertThrows(EntityNotFoundException::class.java) {
+            view.getRequired("user2")
+        }
+
+        assertEquals(1, subject.removeAll(User::class.java))
+        assertNull(view["user1"])
+        subject.addResult(user)
+        assertSame(user, view["user1"])
+
+        val strings = subject.view(String::class.java)
+        subject[String::class.java, 7L] = "7 string"
+        subject.withPrimitiveIds(String::class.java, Long::class.javaPrimitiveType!!)
+        subject[String::class.java, 8L] = "8 string"
+        assertEquals("7 string", strings[7L])
+        assertEquals("8 string", strings[8L])
+        assertNull(strings[8])
+
+        val fork = subject.freeze().fork()
+        fork[String::class.java, 9L] = "9 string"
+        val forked = fork.view(String::class.java)
+        assertEquals("7 string", forked[7L])
+        assertEquals("9 string", forked[9L])
+    }
+
+    @Test
+    fun `Entities referencing an entity are looked up by index`() {
+        val bookKey = schema.describeForeignKeys(Checkout::class.java, Book::class.java).single()
+        subject.addResult(Checkout().setId("checkout1").setBookId("book1"))
+        subject.addResult(Checkout().setId("checkout2").setBookId("book2"))
+
+        assertEquals(listOf("checkout1"), subject.getReferencing(Checkout::class.java, bookKey, "book1").map { it.id })
+        assertTrue(subject.getReferencing(Checkout::class.java, bookKey, "book3").isEmpty())
+
+        // the index follows additions, replacements and removals
+        subject.addResult(Checkout().setId("checkout3").setBookId("book1"))
+        subject.addResult(Checkout().setId("checkout2").setBookId("book1"))
+        assertEquals(setOf("checkout1", "checkout2", "checkout3"),
+            subject.getReferencing(Checkout::class.java, bookKey, "book1").map { it.id }.toSet())
+        assertTrue(subject.getReferencing(Checkout::class.java, bookKey, "book2").isEmpty())
+
+        assertTrue(subject.remove(Checkout::class.java, "checkout1"))
+        assertEquals(2, subject.getReferencing(Checkout::class.java, bookKey, "book1").size)
+        assertEquals(2, subject.removeAll(Checkout::class.java))
+        assertTrue(subject.getReferencing(Checkout::class.java, bookKey, "book1").isEmpty())
+
+        // forks index their parent's entities along with their own
+        subject.addResult(Checkout().setId("checkout4").setBookId("book4"))
+        val fork = subject.freeze().fork()
+        assertEquals(1, fork.getReferencing(Checkout::class.java, bookKey, "book4").size)
+        fork.addResult(Checkout().setId("checkout4").setBookId("book5"))
+        assertTrue(fork.getReferencing(Checkout::class.java, bookKey, "book4").isEmpty())
+        assertEquals(1, fork.getReferencing(Checkout::class.java, bookKey, "book5").size)
+        assertTrue(fork.remove(Checkout::class.java, "checkout4"))
+        assertTrue(fork.getReferencing(Checkout::class.java, bookKey, "book5").isEmpty())
+        assertEquals(1, subject.getReferencing(Checkout::class.java, bookKey, "book4").size)
+
+        assertThrows(IllegalArgumentException::class.java) {
+            subject.getReferencing(Book::class.java, bookKey, "book1")
+        }
+    }
+
+    @Test
+    fun `Concurrent replacements keep the reference index in step with the graph`() {
+        val bookKey = schema.describeForeignKeys(Checkout::class.java, Book::class.java).single()
+        subject.addResult(Checkout().setId("checkout1").setBookId("book0"))
+        subject.getReferencing(Checkout::class.java, bookKey, "book0")
+
+        val start = CyclicBarrier(4)
+        val threads = (0 until 4).map { thread ->
+            Thread {
+                start.await()
+                for (i in 0 until 10_000) {
+                    subject.addResult(Checkout().setId("checkout1").setBookId("book${(thread + i) % 3}"))
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+
+        val bookId = subject[Checkout::class.java, "checkout1"]!!.bookId
+        for (i in 0 until 3) {
+            val expected = if ("book$i" == bookId) listOf("checkout1") else emptyList()
+            assertEquals(expected, subject.getReferencing(Checkout::class.java, bookKey, "book$i").map { it.id })
+        }
+
+        // an entity changed in place is left in the index under its old target but isn't returned for it
+        subject[Checkout::class.java, "checkout1"]!!.setBookId("book3")
+        assertTrue(subject.getReferencing(Checkout::class.java, bookKey, bookId).isEmpty())
+    }
+
+    @Test
+    fun `Copies keep the errors of failed loads`() {
+        subject[String::class.java, 1] = "one"
+        val error = LoadError(Author::class.java, setOf("author1"), IllegalStateException("down"))
+        subject.addError(error)
+
+        val clone = ObjectGraph::class.java.getMethod("clone").invoke(subject) as ObjectGraph
+        assertEquals(listOf(error), clone.errors)
+        val copy = ObjectGraph(schema)
+        subject.copyGraphTo(copy)
+        subject.copyGraphTo(copy)
+        assertEquals(listOf(error), copy.errors)
+        assertEquals(listOf(error), subject.freeze().fork().errors)
+    }
+
 }
@@ -0,0 +1,104 @@
+package com.joraph.loader
+
+import com.joraph.Deadline
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+class ConcurrencyLimitTest {
+
+    private val fastNanos = TimeUnit.MILLISECONDS.toNanos(10)
+    private val slowNanos = TimeUnit.MILLISECONDS.toNanos(100)
+
+    @Test
+    fun `AIMD limit grows while loads succeed and backs off when they fail`() {
+        val limit = AimdLimit(initialLimit = 10, maxLimit = 12, backoffRatio = 0.5, timeoutNanos = slowNanos)
+
+        repeat(5) { limit.onSample(fastNanos, 10, false) }
+        assertEquals(12, limit.limit)
+
+        // an unused limit doesn't grow
+        limit.onSample(fastNanos, 1, false)
+        assertEquals(12, limit.limit)
+
+        limit.onSample(fastNanos, 10, true)
+        assertEquals(6, limit.limit)
+
+        limit.onSample(slowNanos * 2, 6, false)
+        assertEquals(3, limit.limit)
+    }
+
+    @Test
+    fun `Gradient limit grows while latency is flat and shrinks when it rises`() {
+        val limit = GradientLimit(initialLimit = 10, maxLimit = 100)
+
+        repeat(50) { limit.onSample(fastNanos, limit.limit, false) }
+        val grown = limit.limit
+        assertTrue(grown > 10)
+
+        repeat(50) { limit.onSample(fastNanos * 10, limit.limit, false) }
+        assertTrue(limit.limit < grown)
+    }
+
+    @Test
+    fun `Gradient limit requires a positive reset interval`() {
+        assertThrows(IllegalArgumentException::class.java) { GradientLimit(resetAfterSamples = 0) }
+        assertThrows(IllegalArgumentException::class.java) { GradientLimit(resetAfterSamples = -1) }
+    }
+
+    @Test
+    fun `Bulkhead starts queued loads as the limit allows`() {
+        val limit = AimdLimit(initialLimit = 1, maxLimit = 2, timeoutNanos = TimeUnit.SECONDS.toNanos(10))
+        val bulkhead = Bulkhead(limit)
+
+        val first = CompletableFuture<String>()
+        val second = CompletableFuture<String>()
+        val third = CompletableFuture<String>()
+        bulkhead.submit(String::class.java) { first }
+        bulkhead.submit(String::class.java) { second }
+        bulkhead.submit(String::class.java) { third }
+        assertEquals(1, bulkhead.activeCount)
+        assertEquals(2, bulkhead.queuedCount)
+
+        // the limit grows to 2 when the first load succeeds, starting both queued loads
+        first.complete("first")
+        assertEquals(2, limit.limit)
+        assertEquals(2, bulkhead.activeCount)
+        assertEquals(0, bulkhead.queuedCount)
+    }
+
+    @Test
+    fun `Bulkhead starts queued loads that complete right away without recursing`() {
+        val bulkhead = Bulkhead(1)
+        val first = CompletableFuture<String>()
+        bulkhead.submit(String::class.java) { first }
+        val queued = (0 until 100_000).map { i ->
+            bulkhead.submit(String::class.java) { CompletableFuture.completedFuture("$i") }
+        }
+        // cancelled while queued, so its slot is handed on as soon as it's started
+        queued[1].cancel(true)
+
+        first.complete("first")
+        assertEquals("99999", queued.last().join())
+        assertEquals(0, bulkhead.activeCount)
+        assertEquals(0, bulkhead.queuedCount)
+    }
+
+    @Test
+    fun `Bulkhead counts loads cancelled by a passed deadline as dropped`() {
+        val limit = AimdLimit(initialLimit = 10, maxLimit = 10, backoffRatio = 0.5, timeoutNanos = slowNanos)
+        val bulkhead = Bulkhead(limit)
+
+        // cancelled for some other reason
+        bulkhead.submit(String::class.java) { CompletableFuture<String>() }.cancel(true)
+        assertEquals(10, limit.limit)
+
+        val load = Deadline.withCurrent(Deadline.after(1, TimeUnit.MILLISECONDS)) {
+            bulkhead.submit(String::class.java) { CompletableFuture<String>() }
+        }
+        Thread.sleep(5)
+        load.cancel(true)
+        assertEquals(5, limit.limit)
+    }
+}